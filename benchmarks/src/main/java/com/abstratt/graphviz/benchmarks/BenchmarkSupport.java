@@ -0,0 +1,67 @@
+package com.abstratt.graphviz.benchmarks;
+
+import java.io.File;
+import java.util.Map;
+
+import org.eclipse.core.internal.preferences.EclipsePreferences;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.osgi.framework.BundleContext;
+
+import com.abstratt.graphviz.GraphVizActivator;
+import com.abstratt.graphviz.RenderCache;
+
+/**
+ * Runs the Graphviz plug-in outside of OSGi. Preferences are kept in memory,
+ * initialized from system properties named after them, prefixed with the
+ * plug-in ID and a dot. dot is found in the PATH, or can be set with
+ * <code>-Dcom.abstratt.graphviz.dotSearchMethod=MANUAL
+ * -Dcom.abstratt.graphviz.dotManualPath=/path/to/dot</code>.
+ */
+class BenchmarkSupport {
+    private static GraphVizActivator activator;
+
+    /**
+     * The plug-in, with no platform to keep preferences or a disk cache in.
+     */
+    private static class BenchmarkActivator extends GraphVizActivator {
+        private final IEclipsePreferences preferences = new EclipsePreferences();
+
+        BenchmarkActivator() {
+            String prefix = ID + '.';
+            for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+                String name = property.getKey().toString();
+                if (name.startsWith(prefix))
+                    preferences.put(name.substring(prefix.length()), property.getValue().toString());
+            }
+        }
+
+        @Override
+        protected IEclipsePreferences getPreferenceNode() {
+            return preferences;
+        }
+
+        @Override
+        protected File getRenderCacheLocation(BundleContext context) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts the plug-in (once per JVM).
+     *
+     * @param cached
+     *            whether renders may be served from the render cache (only
+     *            honored on the first call)
+     */
+    static synchronized GraphVizActivator start(boolean cached) throws Exception {
+        if (activator == null) {
+            if (System.getProperty(RenderCache.ENABLED) == null)
+                System.setProperty(RenderCache.ENABLED, Boolean.toString(cached));
+            activator = new BenchmarkActivator();
+            activator.start(null);
+            if (!activator.getSettings().getDotStatus().isOK())
+                throw new IllegalStateException(activator.getSettings().getDotStatus().getMessage());
+        }
+        return activator;
+    }
+}
@@ -0,0 +1,58 @@
+package com.abstratt.graphviz.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic DOT graphs of a given size. Graphs are layered (edges
+ * mostly go from one layer to the next, as in typical dependency or class
+ * diagrams), and are fully determined by their parameters, so results are
+ * comparable across runs and machines.
+ */
+public class DotGraphGenerator {
+    private static final long SEED = 42;
+
+    /**
+     * Generates a directed graph with the given number of nodes and edges.
+     */
+    public static byte[] generate(int nodes, int edges) {
+        Random random = new Random(SEED);
+        // roughly as many layers as nodes per layer
+        int layerSize = Math.max(1, (int) Math.sqrt(nodes));
+        StringBuilder dot = new StringBuilder(nodes * 40 + edges * 20);
+        dot.append("digraph G {\n");
+        dot.append("  node [shape=box];\n");
+        for (int i = 0; i < nodes; i++)
+            dot.append("  n").append(i).append(" [label=\"Node ").append(i).append("\"];\n");
+        for (int i = 0; i < edges; i++) {
+            int source = random.nextInt(nodes);
+            int layer = source / layerSize;
+            // most edges go to the next layer, some skip further ahead
+            int targetLayer = layer + 1 + (random.nextInt(10) == 0 ? random.nextInt(3) : 0);
+            int target = targetLayer * layerSize + random.nextInt(layerSize);
+            if (target >= nodes)
+                target = random.nextInt(nodes);
+            dot.append("  n").append(source).append(" -> n").append(target).append(";\n");
+        }
+        dot.append("}\n");
+        return dot.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Generates a graph with one and a half edges per node.
+     */
+    public static byte[] generate(int nodes) {
+        return generate(nodes, nodes * 3 / 2);
+    }
+
+    /**
+     * Writes a generated graph to the standard output, for inspection or for
+     * use with other tools. Arguments: nodes [edges]
+     */
+    public static void main(String[] args) {
+        int nodes = Integer.parseInt(args[0]);
+        byte[] graph = args.length > 1 ? generate(nodes, Integer.parseInt(args[1])) : generate(nodes);
+        System.out.write(graph, 0, graph.length);
+        System.out.flush();
+    }
+}
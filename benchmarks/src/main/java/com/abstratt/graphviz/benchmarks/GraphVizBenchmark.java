@@ -0,0 +1,66 @@
+package com.abstratt.graphviz.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abstratt.graphviz.GraphViz;
+
+/**
+ * End-to-end render latency through the public API, with the render cache
+ * disabled so every invocation runs dot. Larger graphs take dot a long time
+ * to lay out; pick sizes with <code>-p nodes=...</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GraphVizBenchmark {
+    @Param({ "100", "1000", "10000", "100000" })
+    public int nodes;
+
+    @Param({ "png", "svg" })
+    public String format;
+
+    private byte[] graph;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.start(false);
+        graph = DotGraphGenerator.generate(nodes);
+        output = File.createTempFile("benchmark", "." + format);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Benchmark
+    public byte[] load() throws Exception {
+        return GraphViz.load(new ByteArrayInputStream(graph), format, 0, 0);
+    }
+
+    @Benchmark
+    public void generate() throws Exception {
+        GraphViz.generate(new ByteArrayInputStream(graph), format, 0, 0, new Path(output.getAbsolutePath()));
+    }
+}
@@ -0,0 +1,49 @@
+package com.abstratt.graphviz.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abstratt.graphviz.GraphViz;
+
+/**
+ * Decoding of dot's PNG output, as done by
+ * <code>DOTGraphicalContentProvider.loadImage</code> once dot is done. The
+ * final conversion into an SWT image needs a display, so it is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageDecodeBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int nodes;
+
+    private byte[] png;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.start(false);
+        png = GraphViz.load(new ByteArrayInputStream(DotGraphGenerator.generate(nodes)), "png", 0, 0);
+    }
+
+    @Benchmark
+    public ImageData decode() {
+        return new ImageLoader().load(new ByteArrayInputStream(png))[0];
+    }
+}
@@ -0,0 +1,62 @@
+package com.abstratt.graphviz.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abstratt.graphviz.ProcessController;
+
+/**
+ * Process handling overhead, independent of what dot does: how long it takes
+ * to spawn and wait for a trivial process, and how fast data gets through a
+ * process's standard input and output (using <code>cat</code>, so this needs
+ * a Unix-like system).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessControllerBenchmark {
+    /** Megabytes to push through <code>cat</code>. */
+    @Param({ "1", "32" })
+    public int megabytes;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[megabytes * 1024 * 1024];
+        new Random(42).nextBytes(payload);
+    }
+
+    @Benchmark
+    public int spawn() throws Exception {
+        return new ProcessController(10000, new String[] { "true" }, null, null).execute();
+    }
+
+    @Benchmark
+    public int forward() throws Exception {
+        ProcessController controller = new ProcessController(60000, new String[] { "cat" }, null, null);
+        OutputStream discard = new NullOutputStream();
+        controller.forwardInput(new ByteArrayInputStream(payload));
+        controller.forwardOutput(discard);
+        controller.forwardErrorOutput(discard);
+        return controller.execute();
+    }
+}
@@ -20,7 +20,13 @@ public interface IContentProviderRegistry {
     }
 
     /**
-     * Find the content provider that matches the given content type.
+     * Find the content provider that matches the given content type (or the
+     * closest of its base types that has one).
+     * 
+     * @param minimumProtocol
+     *            the type the content provider must implement, or
+     *            <code>null</code> for any
+     * @return the matching provider, or <code>null</code> if none
      */
     public IProviderDescription findContentProvider(IContentType target,
             Class<? extends IContentProvider> minimumProtocol);
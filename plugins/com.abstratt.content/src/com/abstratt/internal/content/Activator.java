@@ -33,5 +33,6 @@ public class Activator implements BundleActivator {
      * org.eclipse.core.runtime.Plugin#stop(org.osgi.framework.BundleContext)
      */
     public void stop(BundleContext context) throws Exception {
+        ((ContentProviderRegistry) ContentSupport.getContentProviderRegistry()).dispose();
     }
 }
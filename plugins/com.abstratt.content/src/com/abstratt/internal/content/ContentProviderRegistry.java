@@ -1,63 +1,170 @@
 package com.abstratt.internal.content;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.beanutils.MethodUtils;
+import org.eclipse.core.runtime.ContributorFactoryOSGi;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IConfigurationElement;
 import org.eclipse.core.runtime.IExtensionRegistry;
+import org.eclipse.core.runtime.IRegistryChangeEvent;
+import org.eclipse.core.runtime.IRegistryChangeListener;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.RegistryFactory;
 import org.eclipse.core.runtime.content.IContentType;
 import org.eclipse.core.runtime.content.IContentTypeManager;
 import org.eclipse.jface.viewers.IContentProvider;
+import org.osgi.framework.Bundle;
 
 import com.abstratt.content.ContentSupport;
 import com.abstratt.content.IContentProviderRegistry;
 import com.abstratt.pluginutils.LogUtils;
 import com.abstratt.pluginutils.RegistryReader;
 
+/**
+ * Knows the content providers contributed through the
+ * <code>com.abstratt.content.contentProvider</code> extension point. Lookups
+ * go through an index by content type, and their results are remembered, so
+ * finding a provider for a content type seen before is a single map lookup.
+ * The index is rebuilt whenever content providers or content types are added
+ * or removed.
+ */
 public class ContentProviderRegistry implements IContentProviderRegistry {
     public class ContentProviderDescriptor implements IProviderDescription {
         private IConfigurationElement configElement;
-        private Set<IContentType> associations = new HashSet<IContentType>();
-        private List<Object> readers = new ArrayList<Object>();
+        private Set<String> associations = new LinkedHashSet<String>();
+        private IConfigurationElement[] readerElements;
+        /** Readers are only instantiated when first needed. */
+        private Object[] readers;
+        /** Reader bindings by source type, including misses. */
+        private final ConcurrentMap<Class<?>, ReaderBinding> readerBindings =
+                new ConcurrentHashMap<Class<?>, ReaderBinding>();
+        private Class<?> providerClass;
+        private boolean providerClassResolved;
 
         public ContentProviderDescriptor(IConfigurationElement configElement) {
             this.configElement = configElement;
             IConfigurationElement[] associationElements = configElement.getChildren("association");
-            IContentTypeManager pcm = Platform.getContentTypeManager();
             for (IConfigurationElement associationEl : associationElements)
-                associations.add(pcm.getContentType(associationEl.getAttribute("contentType")));
-            IConfigurationElement[] readerElements = configElement.getChildren("reader");
-            for (IConfigurationElement readerEl : readerElements)
+                associations.add(associationEl.getAttribute("contentType"));
+            readerElements = configElement.getChildren("reader");
+            readers = new Object[readerElements.length];
+        }
+
+        public boolean canRead(Class<?> sourceType) {
+            return findReader(sourceType) != null;
+        }
+
+        public Object findReader(Class<?> sourceType) {
+            return getReaderBinding(sourceType).reader;
+        }
+
+        /**
+         * Returns the reader for the given source type and a method handle
+         * for its read method, working them out only the first time a source
+         * type is seen.
+         */
+        private ReaderBinding getReaderBinding(Class<?> sourceType) {
+            ReaderBinding binding = readerBindings.get(sourceType);
+            if (binding == null) {
+                binding = bindReader(sourceType);
+                readerBindings.put(sourceType, binding);
+            }
+            return binding;
+        }
+
+        private ReaderBinding bindReader(Class<?> sourceType) {
+            for (int i = 0; i < readerElements.length; i++) {
+                Object reader = getReader(i);
+                Method method = reader == null ? null : getReaderMethod(reader, sourceType);
+                if (method != null)
+                    try {
+                        MethodHandle handle = MethodHandles.publicLookup().unreflect(method).bindTo(reader);
+                        return new ReaderBinding(reader, handle.asType(READ_TYPE));
+                    } catch (IllegalAccessException e) {
+                        Activator.logUnexpected(null, e);
+                    }
+            }
+            return ReaderBinding.NONE;
+        }
+
+        private synchronized Object getReader(int index) {
+            if (readers[index] == null && readerElements[index] != null)
                 try {
-                    Object reader = readerEl.createExecutableExtension("class");
-                    readers.add(reader);
+                    readers[index] = readerElements[index].createExecutableExtension("class");
                 } catch (CoreException e) {
                     LogUtils.logError(ContentSupport.PLUGIN_ID, "Error processing content provider extension "
                             + configElement.getNamespaceIdentifier(), e);
+                    // no point in trying again
+                    readerElements[index] = null;
                 }
+            return readers[index];
         }
 
-        public boolean canRead(Class<?> sourceType) {
-            return findReader(sourceType) != null;
+        public Set<IContentType> getAssociations() {
+            Set<IContentType> contentTypes = new HashSet<IContentType>();
+            IContentTypeManager pcm = Platform.getContentTypeManager();
+            for (String association : associations) {
+                IContentType contentType = pcm.getContentType(association);
+                if (contentType != null)
+                    contentTypes.add(contentType);
+            }
+            return contentTypes;
         }
 
-        public Object findReader(Class<?> sourceType) {
-            for (Object reader : readers)
-                if (getReaderMethod(reader, sourceType) != null)
-                    return reader;
-            return null;
+        /**
+         * Returns the provider's class, loaded (but not instantiated) on first
+         * use, or <code>null</code> if it could not be loaded.
+         */
+        private synchronized Class<?> getProviderClass() {
+            if (!providerClassResolved) {
+                providerClassResolved = true;
+                String className = configElement.getAttribute("class");
+                // drops any initialization data
+                int separator = className.indexOf(':');
+                if (separator >= 0)
+                    className = className.substring(0, separator);
+                try {
+                    Bundle bundle = ContributorFactoryOSGi.resolve(configElement.getContributor());
+                    if (bundle != null)
+                        providerClass = bundle.loadClass(className.trim());
+                } catch (ClassNotFoundException e) {
+                    LogUtils.logError(ContentSupport.PLUGIN_ID, "Could not load content provider class", e);
+                }
+                if (providerClass == null) {
+                    // as a last resort, find out by instantiating it
+                    IContentProvider provider = getProvider();
+                    if (provider != null) {
+                        providerClass = provider.getClass();
+                        provider.dispose();
+                    }
+                }
+            }
+            return providerClass;
         }
 
-        public Set<IContentType> getAssociations() {
-            return associations;
+        /**
+         * Returns whether this descriptor's provider implements the given
+         * protocol, without instantiating it.
+         */
+        private boolean provides(Class<?> protocol) {
+            if (protocol == null)
+                return true;
+            Class<?> actual = getProviderClass();
+            return actual != null && protocol.isAssignableFrom(actual);
         }
 
         public IContentProvider getProvider() {
@@ -72,39 +179,101 @@ public class ContentProviderRegistry implements IContentProviderRegistry {
         private Method getReaderMethod(Object reader, Class<?> sourceType) {
             Method method = MethodUtils.getMatchingAccessibleMethod(reader.getClass(), "read",
                     new Class[] { sourceType });
-            return method == null || method.getReturnType() == Void.class ? null : method;
+            return method == null || method.getReturnType() == void.class ? null : method;
         }
 
         public Object read(Object source) {
-            Object reader = findReader(source.getClass());
-            if (reader == null)
+            MethodHandle readerHandle = getReaderBinding(source.getClass()).handle;
+            if (readerHandle == null)
                 throw new IllegalArgumentException("Cannot read " + source);
-            Method readerMethod = getReaderMethod(reader, source.getClass());
             try {
-                return readerMethod.invoke(reader, source);
-            } catch (IllegalAccessException e) {
-                Activator.logUnexpected(null, e);
-            } catch (InvocationTargetException e) {
+                return (Object) readerHandle.invokeExact(source);
+            } catch (Exception e) {
                 Activator.logUnexpected(null, e);
+            } catch (Throwable e) {
+                // only errors are left
+                throw (Error) e;
             }
             return null;
         }
     }
 
-    private static final String CONTENT_PROVIDER_XP = ContentSupport.PLUGIN_ID + ".contentProvider"; //$NON-NLS-1$
+    /**
+     * A reader, plus a handle for its read method taking a given source type.
+     */
+    private static class ReaderBinding {
+        /** For source types no reader can read. */
+        static final ReaderBinding NONE = new ReaderBinding(null, null);
+
+        final Object reader;
+        final MethodHandle handle;
+
+        ReaderBinding(Object reader, MethodHandle handle) {
+            this.reader = reader;
+            this.handle = handle;
+        }
+    }
+
+    /** The type read method handles are adapted to. */
+    private static final MethodType READ_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * The descriptors by the content types they are associated with, plus the
+     * results of lookups made against them. Replaced as a whole whenever the
+     * registry changes, so lookups never see a mix of old and new.
+     */
+    private static class Index {
+        final Map<String, List<ContentProviderDescriptor>> byContentType =
+                new HashMap<String, List<ContentProviderDescriptor>>();
+        final ConcurrentMap<String, Object> lookups = new ConcurrentHashMap<String, Object>();
+    }
+
+    private static final String CONTENT_PROVIDER_XP_NAME = "contentProvider"; //$NON-NLS-1$
+
+    private static final String CONTENT_PROVIDER_XP = ContentSupport.PLUGIN_ID + '.' + CONTENT_PROVIDER_XP_NAME;
+
+    private static final String CONTENT_TYPES_NAMESPACE = "org.eclipse.core.contenttype"; //$NON-NLS-1$
+
+    private static final String CONTENT_TYPES_XP_NAME = "contentTypes"; //$NON-NLS-1$
+
+    /** Remembers lookups that found nothing. */
+    private static final Object NOT_FOUND = new Object();
 
-    public List<ContentProviderDescriptor> providerDescriptors = new ArrayList<ContentProviderDescriptor>();
+    public volatile List<ContentProviderDescriptor> providerDescriptors = Collections.emptyList();
+
+    private volatile Index index = new Index();
+
+    private final IRegistryChangeListener registryListener = new IRegistryChangeListener() {
+        public void registryChanged(IRegistryChangeEvent event) {
+            // content type hierarchies may have changed too
+            if (event.getExtensionDeltas(ContentSupport.PLUGIN_ID, CONTENT_PROVIDER_XP_NAME).length > 0
+                    || event.getExtensionDeltas(CONTENT_TYPES_NAMESPACE, CONTENT_TYPES_XP_NAME).length > 0)
+                build();
+        }
+    };
 
     public ContentProviderRegistry() {
         build();
+        IExtensionRegistry registry = RegistryFactory.getRegistry();
+        if (registry != null)
+            registry.addRegistryChangeListener(registryListener);
     }
 
-    private void addProvider(IConfigurationElement element) {
-        providerDescriptors.add(new ContentProviderDescriptor(element));
+    /**
+     * Stops tracking changes to the extension registry.
+     */
+    public void dispose() {
+        IExtensionRegistry registry = RegistryFactory.getRegistry();
+        if (registry != null)
+            registry.removeRegistryChangeListener(registryListener);
     }
 
-    private void build() {
+    private synchronized void build() {
         IExtensionRegistry registry = RegistryFactory.getRegistry();
+        // no registry when running outside of a platform
+        if (registry == null)
+            return;
+        final List<ContentProviderDescriptor> descriptors = new ArrayList<ContentProviderDescriptor>();
         new RegistryReader() {
             @Override
             protected String getNamespace() {
@@ -113,10 +282,21 @@ public class ContentProviderRegistry implements IContentProviderRegistry {
 
             @Override
             protected boolean readElement(IConfigurationElement element) {
-                addProvider(element);
+                descriptors.add(new ContentProviderDescriptor(element));
                 return true;
             }
         }.readRegistry(registry, CONTENT_PROVIDER_XP);
+        Index newIndex = new Index();
+        for (ContentProviderDescriptor descriptor : descriptors)
+            for (String contentTypeId : descriptor.associations) {
+                List<ContentProviderDescriptor> associated = newIndex.byContentType.get(contentTypeId);
+                if (associated == null)
+                    newIndex.byContentType.put(contentTypeId,
+                            associated = new ArrayList<ContentProviderDescriptor>());
+                associated.add(descriptor);
+            }
+        providerDescriptors = Collections.unmodifiableList(descriptors);
+        index = newIndex;
     }
 
     /*
@@ -128,12 +308,30 @@ public class ContentProviderRegistry implements IContentProviderRegistry {
      */
     public IProviderDescription findContentProvider(IContentType target,
             Class<? extends IContentProvider> minimumProtocol) {
-        for (ContentProviderDescriptor descriptor : providerDescriptors)
-            for (IContentType contentType : descriptor.getAssociations())
-                if (target.isKindOf(contentType)) {
-                    if (minimumProtocol != null && minimumProtocol.isInstance(descriptor.getProvider()))
+        Index current = index;
+        String key = target.getId() + '/' + (minimumProtocol == null ? "" : minimumProtocol.getName());
+        Object found = current.lookups.get(key);
+        if (found == null) {
+            found = resolve(current, target, minimumProtocol);
+            current.lookups.put(key, found == null ? NOT_FOUND : found);
+        }
+        return found == NOT_FOUND ? null : (IProviderDescription) found;
+    }
+
+    /**
+     * Finds a provider for the given content type, or the closest of its base
+     * types that has one. Among providers for the same content type, the
+     * first one registered wins.
+     */
+    private ContentProviderDescriptor resolve(Index current, IContentType target,
+            Class<? extends IContentProvider> minimumProtocol) {
+        for (IContentType contentType = target; contentType != null; contentType = contentType.getBaseType()) {
+            List<ContentProviderDescriptor> associated = current.byContentType.get(contentType.getId());
+            if (associated != null)
+                for (ContentProviderDescriptor descriptor : associated)
+                    if (descriptor.provides(minimumProtocol))
                         return descriptor;
-                }
+        }
         return null;
     }
 
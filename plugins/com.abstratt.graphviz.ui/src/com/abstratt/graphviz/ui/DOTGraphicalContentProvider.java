@@ -3,25 +3,117 @@ package com.abstratt.graphviz.ui;
 import static com.abstratt.imageviewer.IGraphicalContentProvider.GraphicFileFormat.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
-import org.eclipse.swt.graphics.ImageLoader;
 import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Display;
 
+import com.abstratt.graphviz.DotFileReference;
 import com.abstratt.graphviz.GraphViz;
+import com.abstratt.graphviz.GraphVizActivator;
+import com.abstratt.graphviz.GraphVizSettings;
+import com.abstratt.graphviz.XDotDisplayList;
+import com.abstratt.graphviz.XDotParser;
 import com.abstratt.imageviewer.AbstractGraphicalContentProvider;
+import com.abstratt.imageviewer.BoundedImageDecoder;
+import com.abstratt.imageviewer.IScalableGraphicalContentProvider;
+import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 /**
  * A graphical content provider that produces graphical output from a DOT
  * description.
+ * <p>
+ * With vector rendering enabled (see
+ * {@link GraphVizSettings#isVectorRendering()}), dot is only asked to lay
+ * the graph out (as xdot), once per contents, and images of any size are
+ * painted from that. Otherwise dot renders an image for every size needed.
+ * </p>
+ * <p>
+ * With progressive rendering enabled (see
+ * {@link GraphVizSettings#isProgressiveRendering()}), large graphs are first
+ * shown as laid out by a quicker, rougher dot run.
+ * </p>
  */
-public class DOTGraphicalContentProvider extends AbstractGraphicalContentProvider {
+public class DOTGraphicalContentProvider extends AbstractGraphicalContentProvider implements
+        IScalableGraphicalContentProvider {
+
+    /**
+     * The graph laid out for some input with some settings (without a painter
+     * if dot's layout could not be read).
+     */
+    private static class Layout {
+        final Object input;
+        final GraphVizSettings settings;
+        final XDotPainter painter;
+
+        Layout(Object input, GraphVizSettings settings, XDotPainter painter) {
+            this.input = input;
+            this.settings = settings;
+            this.painter = painter;
+        }
+
+        /**
+         * Returns whether this is the layout of the given input with the
+         * given settings (a new settings snapshot is taken whenever
+         * preferences change).
+         */
+        boolean isFor(Object otherInput, GraphVizSettings otherSettings) {
+            return settings == otherSettings && Objects.deepEquals(input, otherInput);
+        }
+    }
+
+    /**
+     * The scale images were painted at from a layout, so they can be painted
+     * again at other scales.
+     */
+    private static class PaintedImage {
+        final XDotPainter painter;
+        final double scale;
+
+        PaintedImage(XDotPainter painter, double scale) {
+            this.painter = painter;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * Inputs smaller than this (in bytes) are rendered quickly enough not to
+     * need a preview.
+     */
+    private static final long PREVIEW_THRESHOLD = 16 * 1024;
+
+    /**
+     * Options that make dot trade layout quality for speed: fewer ranking and
+     * crossing minimization iterations, and straight edges.
+     */
+    private static final String[] PREVIEW_OPTIONS = { "-Gnslimit=1", "-Gnslimit1=1", "-Gmclimit=0.1",
+            "-Gsplines=line" };
+
+    /**
+     * The last layout, reused as long as neither the input nor the settings
+     * change.
+     */
+    private volatile Layout layout;
+
+    private final Map<Image, PaintedImage> paintedImages = Collections
+            .synchronizedMap(new WeakHashMap<Image, PaintedImage>());
 
     /*
      * (non-Javadoc)
@@ -31,14 +123,207 @@ public class DOTGraphicalContentProvider extends AbstractGraphicalContentProvide
      * .swt.widgets.Display, org.eclipse.swt.graphics.Point, java.lang.Object)
      */
     public Image loadImage(Display display, Point desiredSize, Object newInput) throws CoreException {
+        return loadImage(display, desiredSize, newInput, null);
+    }
+
+    @Override
+    protected Image loadImage(Display display, Point desiredSize, Object newInput, IProgressMonitor monitor)
+            throws CoreException {
+        if (desiredSize == null)
+            desiredSize = new Point(0, 0);
+        GraphVizSettings settings = GraphVizActivator.getInstance().getSettings();
+        if (settings.isVectorRendering()) {
+            XDotPainter painter = getPainter(newInput, settings, monitor);
+            if (painter != null)
+                return paintImage(display, painter, desiredSize);
+        }
+        // so pre-rendering can anticipate what will be asked for next
+        GraphVizActivator.getInstance().recordDisplaySize(desiredSize.x, desiredSize.y);
+        // dot is killed if this image is no longer wanted by the time it runs
+        byte[] imageContents = load(newInput, "png", desiredSize.x, desiredSize.y, settings, monitor);
+        return createImage(imageContents, desiredSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * For large graphs, the preview is laid out by dot with options that
+     * make it much faster (see {@link #PREVIEW_OPTIONS}).
+     */
+    @Override
+    protected Image loadPreviewImage(Display display, Point desiredSize, Object input, IProgressMonitor monitor)
+            throws CoreException {
+        GraphVizSettings current = GraphVizActivator.getInstance().getSettings();
+        if (!current.isProgressiveRendering() || getLength(input) < PREVIEW_THRESHOLD)
+            return null;
         if (desiredSize == null)
             desiredSize = new Point(0, 0);
-        byte[] imageContents = GraphViz.load(new ByteArrayInputStream((byte[]) newInput), "png", desiredSize.x,
-                desiredSize.y);
-        // try to load the resulting image
-        ImageLoader loader = new ImageLoader();
-        ImageData[] imageData = loader.load(new ByteArrayInputStream(imageContents));
-        return new Image(Display.getDefault(), imageData[0]);
+        GraphVizSettings settings = current.withOptions(PREVIEW_OPTIONS);
+        if (settings.isVectorRendering()) {
+            Layout laidOut = layout;
+            if (laidOut != null && laidOut.isFor(input, current))
+                // the actual image will be painted right away
+                return null;
+            try {
+                return paintImage(display, new XDotPainter(parseLayout(load(input, "xdot", 0, 0, settings,
+                        monitor))), desiredSize);
+            } catch (IllegalArgumentException e) {
+                // reported by the actual layout, if it happens again
+                return null;
+            }
+        }
+        return createImage(load(input, "png", desiredSize.x, desiredSize.y, settings, monitor), desiredSize);
+    }
+
+    private static long getLength(Object input) {
+        if (input instanceof DotFileReference)
+            return ((DotFileReference) input).getLocation().length();
+        return ((byte[]) input).length;
+    }
+
+    /**
+     * Creates an image from the given contents, no larger than it will be
+     * shown.
+     */
+    private static Image createImage(byte[] imageContents, Point desiredSize) throws CoreException {
+        long start = System.nanoTime();
+        ImageData imageData;
+        try {
+            imageData = BoundedImageDecoder.decode(imageContents, desiredSize);
+        } catch (IOException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID, "Error decoding image", e));
+        }
+        Metrics.timer("viewer.decode").recordSince(start);
+        start = System.nanoTime();
+        try {
+            return new Image(Display.getDefault(), imageData);
+        } finally {
+            Metrics.timer("viewer.imageCreation").recordSince(start);
+        }
+    }
+
+    /**
+     * Runs dot on the given input, which is either a file reference (see
+     * {@link FileToDotInputReader}) or DOT contents in memory.
+     */
+    private static byte[] load(Object input, String format, int dimensionX, int dimensionY,
+            GraphVizSettings settings, IProgressMonitor monitor) throws CoreException {
+        if (input instanceof DotFileReference)
+            return GraphViz.load((DotFileReference) input, format, dimensionX, dimensionY, settings, monitor);
+        return GraphViz.load(new ByteArrayInputStream((byte[]) input), format, dimensionX, dimensionY, settings,
+                monitor);
+    }
+
+    /**
+     * Returns a painter for the given input, laying it out only if it
+     * changed since last time. Returns <code>null</code> if dot's layout
+     * could not be read, so an image can be rendered the usual way.
+     */
+    private XDotPainter getPainter(Object input, GraphVizSettings settings, IProgressMonitor monitor)
+            throws CoreException {
+        Layout current = layout;
+        if (current != null && current.isFor(input, settings)) {
+            Metrics.counter("viewer.layoutReuses").increment();
+            return current.painter;
+        }
+        byte[] xdot = load(input, "xdot", 0, 0, settings, monitor);
+        XDotPainter painter = null;
+        try {
+            painter = new XDotPainter(parseLayout(xdot));
+        } catch (IllegalArgumentException e) {
+            LogUtils.logWarning(Activator.PLUGIN_ID, "Could not read dot's xdot output, rendering images instead", e);
+        }
+        // failures are remembered too, so they are not logged over and over
+        layout = new Layout(input, settings, painter);
+        return painter;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if dot's xdot output could not be read
+     */
+    private static XDotDisplayList parseLayout(byte[] xdot) {
+        long start = System.nanoTime();
+        try {
+            return XDotParser.parse(xdot);
+        } finally {
+            Metrics.timer("viewer.xdotParse").recordSince(start);
+        }
+    }
+
+    /**
+     * Paints an image from the given layout, as large as possible within the
+     * given size (but no larger than dot would have rendered it). Without a
+     * size (as in zoom mode, where what is shown gets painted from the layout
+     * at the scale needed), the image is only an overview no larger than the
+     * screen. Either way, it has no more pixels than decoded images may have
+     * (see {@link BoundedImageDecoder#getMaxPixels()}).
+     */
+    private Image paintImage(final Display display, final XDotPainter painter, final Point desiredSize) {
+        final Point naturalSize = painter.getSize(1);
+        final Image[] result = { null };
+        final double[] scale = { 1 };
+        // fonts and text measurement are best left to the UI thread
+        display.syncExec(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                Point targetSize = desiredSize;
+                if (targetSize.x <= 0 || targetSize.y <= 0) {
+                    Rectangle screen = display.getBounds();
+                    targetSize = new Point(screen.width, screen.height);
+                }
+                scale[0] = Math.min(1, Math.min((double) targetSize.x / naturalSize.x, (double) targetSize.y
+                        / naturalSize.y));
+                double naturalPixels = (double) naturalSize.x * naturalSize.y;
+                long maxPixels = BoundedImageDecoder.getMaxPixels();
+                if (naturalPixels * scale[0] * scale[0] > maxPixels)
+                    scale[0] = Math.sqrt(maxPixels / naturalPixels);
+                Point size = painter.getSize(scale[0]);
+                Image image = new Image(display, size.x, size.y);
+                GC gc = new GC(image);
+                try {
+                    gc.setBackground(display.getSystemColor(SWT.COLOR_WHITE));
+                    gc.fillRectangle(0, 0, size.x, size.y);
+                    painter.paint(gc, scale[0], new Rectangle(0, 0, size.x, size.y));
+                } finally {
+                    gc.dispose();
+                }
+                Metrics.timer("viewer.paintLayout").recordSince(start);
+                result[0] = image;
+            }
+        });
+        paintedImages.put(result[0], new PaintedImage(painter, scale[0]));
+        return result[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Images painted from a layout can be painted again at any scale, others
+     * cannot.
+     */
+    public boolean paint(GC gc, double scale, Rectangle area) {
+        PaintedImage painted = getPaintedImage();
+        if (painted == null)
+            return false;
+        painted.painter.paint(gc, painted.scale * scale, area);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Images painted from a layout may be smaller than the graph's natural
+     * size.
+     */
+    public double getImageScale() {
+        PaintedImage painted = getPaintedImage();
+        return painted == null ? 1 : painted.scale;
+    }
+
+    private PaintedImage getPaintedImage() {
+        Image image = getImage();
+        return image == null || image.isDisposed() ? null : paintedImages.get(image);
     }
 
     @Override
@@ -47,8 +332,12 @@ public class DOTGraphicalContentProvider extends AbstractGraphicalContentProvide
         if (suggestedSize == null)
             suggestedSize = new Point(0, 0);
         String outputFormat = fileFormat.getExtension();
-        GraphViz.generate(new ByteArrayInputStream((byte[]) input), outputFormat, suggestedSize.x, suggestedSize.y,
-                outputLocation);
+        if (input instanceof DotFileReference)
+            GraphViz.generate((DotFileReference) input, outputFormat, suggestedSize.x, suggestedSize.y,
+                    outputLocation);
+        else
+            GraphViz.generate(new ByteArrayInputStream((byte[]) input), outputFormat, suggestedSize.x,
+                    suggestedSize.y, outputLocation);
     }
     
     @Override
@@ -0,0 +1,40 @@
+package com.abstratt.graphviz.ui;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IPath;
+
+import com.abstratt.graphviz.DotFileReference;
+import com.abstratt.imageviewer.FileToByteArrayContentReader;
+
+/**
+ * Reads DOT files as references to their location, so dot can read them by
+ * itself. Files that are not in the local file system are read into memory.
+ * Local files are still read through once, to tell whether they actually
+ * changed since they were last read, which also spares reading them again
+ * for looking them up in the render cache.
+ */
+public class FileToDotInputReader {
+    private final FileToByteArrayContentReader contentsReader = new FileToByteArrayContentReader();
+
+    /**
+     * Returns either a {@link DotFileReference} or the file contents as a
+     * byte array.
+     */
+    public Object read(IFile input) {
+        IPath location = input.getLocation();
+        if (location == null)
+            return contentsReader.read(input);
+        // the stamp is taken first, so it is never newer than the contents
+        long modificationStamp = input.getModificationStamp();
+        File file = location.toFile();
+        try {
+            return DotFileReference.read(file, modificationStamp);
+        } catch (IOException e) {
+            // only the modification stamp will tell versions apart
+            return new DotFileReference(file, modificationStamp);
+        }
+    }
+}
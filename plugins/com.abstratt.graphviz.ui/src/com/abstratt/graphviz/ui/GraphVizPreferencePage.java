@@ -11,7 +11,9 @@
 package com.abstratt.graphviz.ui;
 
 import java.io.File;
+import java.util.List;
 
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.jface.dialogs.IMessageProvider;
 import org.eclipse.jface.preference.PreferencePage;
 import org.eclipse.swt.SWT;
@@ -20,15 +22,20 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Combo;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Group;
+import org.eclipse.swt.widgets.Spinner;
 import org.eclipse.swt.widgets.Text;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 
 import com.abstratt.graphviz.GraphVizActivator;
 import com.abstratt.graphviz.GraphVizActivator.DotMethod;
+import com.abstratt.graphviz.IRenderEngine;
+import com.abstratt.graphviz.RenderEngineRegistry.RenderEngineDescriptor;
+import com.abstratt.graphviz.RenderScheduler;
 
 public class GraphVizPreferencePage extends PreferencePage implements IWorkbenchPreferencePage {
     /**
@@ -53,6 +60,13 @@ public class GraphVizPreferencePage extends PreferencePage implements IWorkbench
 
     private FileBrowserField dotBrowser;
     private Text commandLineText;
+    private Spinner maxConcurrentRendersSpinner;
+    private Combo renderEngineCombo;
+    private Button vectorRenderingButton;
+    private Button progressiveRenderingButton;
+    private List<RenderEngineDescriptor> renderEngines;
+
+    private static final int MAX_CONCURRENT_RENDERS = 256;
 
     /**
      * Creates the mildly complex radio buttons that the prefs dialog uses.
@@ -114,6 +128,8 @@ public class GraphVizPreferencePage extends PreferencePage implements IWorkbench
         Composite composite = createComposite(parent);
         createOpenModeGroup(composite);
         createCommandLineExtension(composite);
+        createConcurrencyGroup(composite);
+        createRenderEngineGroup(composite);
         applyDialogFont(composite);
         return composite;
     }
@@ -142,6 +158,90 @@ public class GraphVizPreferencePage extends PreferencePage implements IWorkbench
         commandLineText.setLayoutData(data);
     }
 
+    /**
+     * Creates widgets for limiting how many dot processes may run at once.
+     * 
+     * @param composite
+     */
+    private void createConcurrencyGroup(Composite composite) {
+        Group group = new Group(composite, SWT.LEFT);
+        GridLayout layout = new GridLayout();
+        group.setLayout(layout);
+        GridData data = new GridData(GridData.HORIZONTAL_ALIGN_FILL | GridData.GRAB_HORIZONTAL);
+        group.setLayoutData(data);
+        group.setText("Maximum number of dot processes running at the same time");
+        maxConcurrentRendersSpinner = new Spinner(group, SWT.BORDER);
+        maxConcurrentRendersSpinner.setValues(GraphVizActivator.getInstance().getMaxConcurrentRenders(), 1,
+                MAX_CONCURRENT_RENDERS, 0, 1, 4);
+
+        data = new GridData();
+        data.horizontalIndent = 20;
+        maxConcurrentRendersSpinner.setLayoutData(data);
+    }
+
+    /**
+     * Creates widgets for choosing how DOT contents get rendered.
+     * 
+     * @param composite
+     */
+    private void createRenderEngineGroup(Composite composite) {
+        Group group = new Group(composite, SWT.LEFT);
+        GridLayout layout = new GridLayout();
+        group.setLayout(layout);
+        GridData data = new GridData(GridData.HORIZONTAL_ALIGN_FILL | GridData.GRAB_HORIZONTAL);
+        group.setLayoutData(data);
+        group.setText("Rendering engine (running dot is the fallback if the engine chosen is not available)");
+        renderEngineCombo = new Combo(group, SWT.READ_ONLY | SWT.DROP_DOWN);
+        GraphVizActivator graphviz = GraphVizActivator.getInstance();
+        renderEngines = graphviz.getRenderEngineRegistry().getDescriptors();
+        String current = graphviz.getRenderEngine();
+        for (int i = 0; i < renderEngines.size(); i++) {
+            RenderEngineDescriptor descriptor = renderEngines.get(i);
+            renderEngineCombo.add(descriptor.getName() == null ? descriptor.getId() : descriptor.getName());
+            if (descriptor.getId().equals(current))
+                renderEngineCombo.select(i);
+        }
+        if (renderEngineCombo.getSelectionIndex() < 0)
+            renderEngineCombo.select(0);
+        renderEngineCombo.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                renderEngineChanged();
+            }
+        });
+
+        data = new GridData();
+        data.horizontalIndent = 20;
+        renderEngineCombo.setLayoutData(data);
+
+        vectorRenderingButton = new Button(group, SWT.CHECK | SWT.LEFT);
+        vectorRenderingButton.setText("Lay graphs out once and draw them in the viewer (resizing and zooming do not run dot)");
+        vectorRenderingButton.setSelection(graphviz.isVectorRendering());
+        data = new GridData();
+        data.horizontalIndent = 20;
+        vectorRenderingButton.setLayoutData(data);
+
+        progressiveRenderingButton = new Button(group, SWT.CHECK | SWT.LEFT);
+        progressiveRenderingButton.setText("Show a quick preview of large graphs while they are being rendered");
+        progressiveRenderingButton.setSelection(graphviz.isProgressiveRendering());
+        data = new GridData();
+        data.horizontalIndent = 20;
+        progressiveRenderingButton.setLayoutData(data);
+    }
+
+    private void renderEngineChanged() {
+        setMessage(null);
+        RenderEngineDescriptor selected = renderEngines.get(renderEngineCombo.getSelectionIndex());
+        IRenderEngine engine = selected.getEngine();
+        if (engine == null) {
+            setMessage(selected.getId() + " could not be loaded, dot will be run instead", IMessageProvider.WARNING);
+            return;
+        }
+        IStatus engineStatus = engine.getStatus(GraphVizActivator.getInstance().getSettings());
+        if (!engineStatus.isOK())
+            setMessage(engineStatus.getMessage(), IMessageProvider.WARNING);
+    }
+
     protected void createOpenModeGroup(Composite composite) {
         Group buttonComposite = new Group(composite, SWT.LEFT);
         GridLayout layout = new GridLayout();
@@ -234,6 +334,10 @@ public class GraphVizPreferencePage extends PreferencePage implements IWorkbench
         specifyDotButton.setSelection(dotMethod == DotMethod.MANUAL);
         dotBrowser.setText("");
         commandLineText.setText("");
+        maxConcurrentRendersSpinner.setSelection(RenderScheduler.getDefaultLimit());
+        renderEngineCombo.select(0);
+        vectorRenderingButton.setSelection(false);
+        progressiveRenderingButton.setSelection(true);
 
         super.performDefaults();
     }
@@ -247,6 +351,10 @@ public class GraphVizPreferencePage extends PreferencePage implements IWorkbench
         graphviz.setDotSearchMethod(getNewDotMethod());
         graphviz.setManualDotPath(dotBrowser.getText());
         graphviz.setCommandLineExtension(commandLineText.getText());
+        graphviz.setMaxConcurrentRenders(maxConcurrentRendersSpinner.getSelection());
+        graphviz.setRenderEngine(renderEngines.get(renderEngineCombo.getSelectionIndex()).getId());
+        graphviz.setVectorRendering(vectorRenderingButton.getSelection());
+        graphviz.setProgressiveRendering(progressiveRenderingButton.getSelection());
         return true;
     }
 }
@@ -0,0 +1,65 @@
+package com.abstratt.graphviz.ui;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.ui.IObjectActionDelegate;
+import org.eclipse.ui.IWorkbenchPart;
+
+import com.abstratt.graphviz.PreRenderNature;
+import com.abstratt.pluginutils.LogUtils;
+
+/**
+ * Turns pre-rendering of DOT files on or off for the selected project.
+ */
+public class TogglePreRenderingAction implements IObjectActionDelegate {
+
+    private IProject project;
+
+    public void setActivePart(IAction action, IWorkbenchPart targetPart) {
+        // don't care
+    }
+
+    public void run(IAction action) {
+        if (project == null)
+            return;
+        final IProject toToggle = project;
+        final boolean enable = action.isChecked();
+        // changing natures triggers a build, keep it out of the UI thread
+        Job job = new Job((enable ? "Enabling" : "Disabling") + " DOT pre-rendering for " + toToggle.getName()) {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                try {
+                    PreRenderNature.setEnabled(toToggle, enable, monitor);
+                    return Status.OK_STATUS;
+                } catch (CoreException e) {
+                    return e.getStatus();
+                }
+            }
+        };
+        job.setRule(toToggle);
+        job.schedule();
+    }
+
+    public void selectionChanged(IAction action, ISelection selection) {
+        project = null;
+        if (selection instanceof IStructuredSelection && ((IStructuredSelection) selection).size() == 1) {
+            Object selected = ((IStructuredSelection) selection).getFirstElement();
+            if (selected instanceof IAdaptable)
+                project = ((IAdaptable) selected).getAdapter(IProject.class);
+        }
+        try {
+            action.setEnabled(project != null && project.isOpen());
+            action.setChecked(project != null && PreRenderNature.isEnabled(project));
+        } catch (CoreException e) {
+            LogUtils.logError(Activator.PLUGIN_ID, "Could not check for project nature", e);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.abstratt.graphviz.ui;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.Font;
+import org.eclipse.swt.graphics.FontMetrics;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.RGB;
+import org.eclipse.swt.graphics.Rectangle;
+
+import com.abstratt.graphviz.XDotDisplayList;
+import com.abstratt.graphviz.XDotDisplayList.Drawing;
+import com.abstratt.graphviz.XDotDisplayList.Operation;
+
+/**
+ * Paints a graph laid out by dot (see {@link XDotDisplayList}) at any scale.
+ * Only the drawings that intersect the area being painted are visited, so
+ * painting a small part of a large graph is cheap.
+ */
+public class XDotPainter {
+    /**
+     * Pixels per point at scale 1, the same resolution dot renders images
+     * at.
+     */
+    public static final double PIXELS_PER_POINT = 96d / 72;
+
+    /** Space around the graph, in points (the same as dot's default pad). */
+    private static final double MARGIN = 4;
+
+    /** Text smaller than this (in pixels) is not worth painting. */
+    private static final double MIN_TEXT_HEIGHT = 3;
+
+    private static final Pattern GRADIENT_COLOR = Pattern.compile("\\d+ -([^\\s\\]]+)");
+
+    private static final Map<String, RGB> COLOR_NAMES = new HashMap<String, RGB>();
+
+    static {
+        String names = "black:000000,white:ffffff,red:ff0000,green:00ff00,blue:0000ff,yellow:ffff00,cyan:00ffff,"
+                + "magenta:ff00ff,gray:c0c0c0,grey:c0c0c0,lightgray:d3d3d3,lightgrey:d3d3d3,darkgray:a9a9a9,"
+                + "darkgrey:a9a9a9,orange:ffa500,pink:ffc0cb,purple:a020f0,brown:a52a2a,gold:ffd700,navy:000080,"
+                + "maroon:b03060,violet:ee82ee,lightblue:add8e6,lightyellow:ffffe0,lightgreen:90ee90,"
+                + "darkgreen:006400,darkblue:00008b,darkred:8b0000,beige:f5f5dc,khaki:f0e68c,salmon:fa8072,"
+                + "coral:ff7f50,tomato:ff6347,orchid:da70d6,plum:dda0dd,tan:d2b48c,turquoise:40e0d0,"
+                + "lavender:e6e6fa,ivory:fffff0,wheat:f5deb3,crimson:dc143c,indigo:4b0082,olive:808000,"
+                + "teal:008080,silver:c0c0c0,lightpink:ffb6c1,lightcyan:e0ffff,palegreen:98fb98,skyblue:87ceeb,"
+                + "steelblue:4682b4,royalblue:4169e1,firebrick:b22222,forestgreen:228b22,dodgerblue:1e90ff,"
+                + "aquamarine:7fffd4,chartreuse:7fff00,goldenrod:daa520,lightsalmon:ffa07a,orangered:ff4500,"
+                + "seagreen:2e8b57,slateblue:6a5acd,slategray:708090,snow:fffafa,whitesmoke:f5f5f5";
+        for (String entry : names.split(",")) {
+            String[] parts = entry.split(":");
+            int value = Integer.parseInt(parts[1], 16);
+            COLOR_NAMES.put(parts[0], new RGB(value >> 16, (value >> 8) & 0xFF, value & 0xFF));
+        }
+    }
+
+    private final XDotDisplayList displayList;
+
+    public XDotPainter(XDotDisplayList displayList) {
+        this.displayList = displayList;
+    }
+
+    /**
+     * Returns the size of the graph in pixels, at the given scale (1 being
+     * the size dot would render it at).
+     */
+    public Point getSize(double scale) {
+        double factor = scale * PIXELS_PER_POINT;
+        return new Point(Math.max(1, (int) Math.ceil((displayList.getWidth() + 2 * MARGIN) * factor)), Math.max(1,
+                (int) Math.ceil((displayList.getHeight() + 2 * MARGIN) * factor)));
+    }
+
+    /**
+     * Paints the given area of the graph, as shown at the given scale, with
+     * the top left corner of the area at the origin of the given GC. The
+     * background is left alone.
+     */
+    public void paint(GC gc, double scale, Rectangle area) {
+        Painting painting = new Painting(gc, scale * PIXELS_PER_POINT, area);
+        try {
+            for (Drawing drawing : displayList.getDrawings())
+                if (painting.isVisible(drawing))
+                    painting.paint(drawing);
+        } finally {
+            painting.dispose();
+        }
+    }
+
+    /**
+     * Returns the color described by the given xdot color string, as an RGB
+     * plus an alpha value, or <code>null</code> for transparent.
+     */
+    static int[] parseColor(String color) {
+        color = color.trim();
+        if (color.startsWith("[") || color.startsWith("(")) {
+            // gradients are painted in their first color
+            Matcher matcher = GRADIENT_COLOR.matcher(color);
+            return matcher.find() ? parseColor(matcher.group(1)) : new int[] { 0xC0, 0xC0, 0xC0, 0xFF };
+        }
+        if (color.startsWith("#") && (color.length() == 7 || color.length() == 9))
+            try {
+                long value = Long.parseLong(color.substring(1), 16);
+                int alpha = color.length() == 9 ? (int) (value & 0xFF) : 0xFF;
+                if (color.length() == 9)
+                    value >>= 8;
+                return alpha == 0 ? null : new int[] { (int) (value >> 16) & 0xFF, (int) (value >> 8) & 0xFF,
+                        (int) value & 0xFF, alpha };
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        String[] hsv = color.split("[,\\s]+");
+        if (hsv.length == 3)
+            try {
+                RGB rgb = new RGB(Float.parseFloat(hsv[0]) * 360, Float.parseFloat(hsv[1]), Float.parseFloat(hsv[2]));
+                return new int[] { rgb.red, rgb.green, rgb.blue, 0xFF };
+            } catch (IllegalArgumentException e) {
+                // fall through
+            }
+        String name = color.toLowerCase(Locale.ENGLISH);
+        if (name.equals("transparent") || name.equals("none") || name.equals("invis"))
+            return null;
+        if (name.startsWith("/"))
+            // color scheme prefix
+            name = name.substring(name.lastIndexOf('/') + 1);
+        if ((name.startsWith("gray") || name.startsWith("grey")) && name.length() > 4)
+            try {
+                int level = (int) Math.round(Math.min(100, Integer.parseInt(name.substring(4))) * 2.55);
+                return new int[] { level, level, level, 0xFF };
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        // numbered variants (such as red3) are shown as the base color
+        RGB rgb = COLOR_NAMES.get(name.replaceAll("\\d+$", ""));
+        if (rgb == null)
+            rgb = COLOR_NAMES.get("black");
+        return new int[] { rgb.red, rgb.green, rgb.blue, 0xFF };
+    }
+
+    /**
+     * A single painting pass: the drawing state, plus the colors and fonts
+     * allocated along the way, which are disposed at the end.
+     */
+    private class Painting {
+        private final GC gc;
+        private final double factor;
+        private final Rectangle area;
+        private final double[] boundingBox = displayList.getBoundingBox();
+        private final Map<RGB, Color> colors = new HashMap<RGB, Color>();
+        private final Map<String, Font> fonts = new HashMap<String, Font>();
+
+        private int[] penColor;
+        private int[] fillColor;
+        private String fontName;
+        private double fontSize;
+        private int fontFlags;
+        private double lineWidth;
+        private int lineStyle;
+
+        Painting(GC gc, double factor, Rectangle area) {
+            this.gc = gc;
+            this.factor = factor;
+            this.area = area;
+        }
+
+        private int toX(double x) {
+            return (int) Math.round((x - boundingBox[0] + MARGIN) * factor) - area.x;
+        }
+
+        private int toY(double y) {
+            return (int) Math.round((boundingBox[3] - y + MARGIN) * factor) - area.y;
+        }
+
+        boolean isVisible(Drawing drawing) {
+            double[] bounds = drawing.getBounds();
+            // leaves room for line widths and text that is larger than
+            // expected
+            int slack = (int) Math.ceil(4 * factor) + 2;
+            return toX(bounds[2]) + slack >= 0 && toX(bounds[0]) - slack <= area.width && toY(bounds[1]) + slack >= 0
+                    && toY(bounds[3]) - slack <= area.height;
+        }
+
+        void paint(Drawing drawing) {
+            penColor = new int[] { 0, 0, 0, 0xFF };
+            fillColor = penColor;
+            fontName = "Times-Roman";
+            fontSize = 14;
+            fontFlags = 0;
+            lineWidth = 1;
+            lineStyle = SWT.LINE_SOLID;
+            for (Operation operation : drawing.getOperations()) {
+                double[] values = operation.getValues();
+                switch (operation.getKind()) {
+                case 'E':
+                case 'e': {
+                    int x = toX(values[0] - values[2]);
+                    int y = toY(values[1] + values[3]);
+                    int width = toX(values[0] + values[2]) - x;
+                    int height = toY(values[1] - values[3]) - y;
+                    if (operation.getKind() == 'E' && useFill())
+                        gc.fillOval(x, y, width, height);
+                    if (usePen())
+                        gc.drawOval(x, y, width, height);
+                    break;
+                }
+                case 'P':
+                case 'p': {
+                    int[] points = toPoints(values);
+                    if (operation.getKind() == 'P' && useFill())
+                        gc.fillPolygon(points);
+                    if (usePen())
+                        gc.drawPolygon(points);
+                    break;
+                }
+                case 'L':
+                    if (usePen())
+                        gc.drawPolyline(toPoints(values));
+                    break;
+                case 'B':
+                case 'b': {
+                    int[] points = flattenBezier(values);
+                    if (operation.getKind() == 'b' && useFill())
+                        gc.fillPolygon(points);
+                    if (usePen())
+                        gc.drawPolyline(points);
+                    break;
+                }
+                case 'T':
+                    paintText(values, operation.getText());
+                    break;
+                case 'I': {
+                    int x = toX(values[0]);
+                    int y = toY(values[1] + values[3]);
+                    // external images are not loaded, only their place is
+                    // shown
+                    if (usePen())
+                        gc.drawRectangle(x, y, toX(values[0] + values[2]) - x, toY(values[1]) - y);
+                    break;
+                }
+                case 'c':
+                    penColor = parseColor(operation.getText());
+                    break;
+                case 'C':
+                    fillColor = parseColor(operation.getText());
+                    break;
+                case 'F':
+                    fontSize = values[0];
+                    fontName = operation.getText();
+                    break;
+                case 't':
+                    fontFlags = (int) values[0];
+                    break;
+                case 'S':
+                    applyStyle(operation.getText());
+                    break;
+                }
+            }
+        }
+
+        private void applyStyle(String style) {
+            if (style.equals("solid"))
+                lineStyle = SWT.LINE_SOLID;
+            else if (style.equals("dashed"))
+                lineStyle = SWT.LINE_DASH;
+            else if (style.equals("dotted"))
+                lineStyle = SWT.LINE_DOT;
+            else if (style.equals("bold"))
+                lineWidth = 2;
+            else if (style.startsWith("setlinewidth(") && style.endsWith(")"))
+                try {
+                    lineWidth = Double.parseDouble(style.substring("setlinewidth(".length(), style.length() - 1));
+                } catch (NumberFormatException e) {
+                    // keep the current width
+                }
+        }
+
+        /**
+         * Prepares the GC for drawing lines, returning <code>false</code> if
+         * there is nothing to draw (the pen is transparent).
+         */
+        private boolean usePen() {
+            if (penColor == null)
+                return false;
+            gc.setForeground(getColor(penColor));
+            setAlpha(penColor[3]);
+            gc.setLineWidth(Math.max(1, (int) Math.round(lineWidth * factor)));
+            gc.setLineStyle(lineStyle);
+            return true;
+        }
+
+        /**
+         * Prepares the GC for filling, returning <code>false</code> if there
+         * is nothing to fill (the fill color is transparent).
+         */
+        private boolean useFill() {
+            if (fillColor == null)
+                return false;
+            gc.setBackground(getColor(fillColor));
+            setAlpha(fillColor[3]);
+            return true;
+        }
+
+        private int[] toPoints(double[] values) {
+            int[] points = new int[values.length];
+            for (int i = 0; i + 1 < values.length; i += 2) {
+                points[i] = toX(values[i]);
+                points[i + 1] = toY(values[i + 1]);
+            }
+            return points;
+        }
+
+        /**
+         * Turns a piecewise cubic Bezier curve (a start point followed by
+         * control point, control point and end point triples) into a
+         * polyline, with as many segments as the scale requires.
+         */
+        private int[] flattenBezier(double[] values) {
+            if (values.length < 8)
+                return toPoints(values);
+            int curves = (values.length / 2 - 1) / 3;
+            int[][] segments = new int[curves][];
+            int total = 2;
+            for (int curve = 0; curve < curves; curve++) {
+                int base = curve * 6;
+                double length = 0;
+                for (int i = base; i < base + 6; i += 2)
+                    length += Math.hypot(values[i + 2] - values[i], values[i + 3] - values[i + 1]);
+                int steps = Math.max(1, Math.min(64, (int) Math.ceil(length * factor / 6)));
+                int[] points = new int[2 * steps];
+                for (int step = 1; step <= steps; step++) {
+                    double t = (double) step / steps;
+                    double u = 1 - t;
+                    double a = u * u * u, b = 3 * u * u * t, c = 3 * u * t * t, d = t * t * t;
+                    points[2 * step - 2] = toX(a * values[base] + b * values[base + 2] + c * values[base + 4] + d
+                            * values[base + 6]);
+                    points[2 * step - 1] = toY(a * values[base + 1] + b * values[base + 3] + c * values[base + 5] + d
+                            * values[base + 7]);
+                }
+                segments[curve] = points;
+                total += points.length;
+            }
+            int[] polyline = new int[total];
+            polyline[0] = toX(values[0]);
+            polyline[1] = toY(values[1]);
+            int position = 2;
+            for (int[] points : segments) {
+                System.arraycopy(points, 0, polyline, position, points.length);
+                position += points.length;
+            }
+            return polyline;
+        }
+
+        private void paintText(double[] values, String text) {
+            double pixelHeight = fontSize * factor;
+            if (pixelHeight < MIN_TEXT_HEIGHT || penColor == null)
+                return;
+            gc.setFont(getFont(pixelHeight));
+            gc.setForeground(getColor(penColor));
+            setAlpha(penColor[3]);
+            Point extent = gc.textExtent(text, SWT.DRAW_TRANSPARENT);
+            int x = toX(values[0]);
+            int justification = (int) values[2];
+            if (justification == 0)
+                x -= extent.x / 2;
+            else if (justification > 0)
+                x -= extent.x;
+            // xdot gives the baseline, SWT wants the top
+            FontMetrics metrics = gc.getFontMetrics();
+            int baseline = toY(values[1]);
+            int y = baseline - metrics.getAscent() - metrics.getLeading();
+            gc.drawText(text, x, y, SWT.DRAW_TRANSPARENT);
+            if ((fontFlags & 4) != 0) {
+                // underline
+                gc.setLineWidth(1);
+                gc.setLineStyle(SWT.LINE_SOLID);
+                gc.drawLine(x, baseline + 1, x + extent.x, baseline + 1);
+            }
+        }
+
+        private void setAlpha(int alpha) {
+            // avoids switching to advanced graphics unless needed
+            if (gc.getAlpha() != alpha)
+                gc.setAlpha(alpha);
+        }
+
+        private Color getColor(int[] color) {
+            RGB rgb = new RGB(color[0], color[1], color[2]);
+            Color existing = colors.get(rgb);
+            if (existing == null)
+                colors.put(rgb, existing = new Color(gc.getDevice(), rgb));
+            return existing;
+        }
+
+        /**
+         * Returns a font matching the current font name and flags, sized to
+         * the given height in pixels.
+         */
+        private Font getFont(double pixelHeight) {
+            String name = fontName;
+            int style = SWT.NORMAL;
+            // PostScript names carry the style after a dash (Times-Bold)
+            int dash = name.indexOf('-');
+            if (dash > 0) {
+                String variant = name.substring(dash + 1).toLowerCase(Locale.ENGLISH);
+                if (variant.contains("bold"))
+                    style |= SWT.BOLD;
+                if (variant.contains("italic") || variant.contains("oblique"))
+                    style |= SWT.ITALIC;
+                name = name.substring(0, dash);
+            }
+            if ((fontFlags & 1) != 0)
+                style |= SWT.BOLD;
+            if ((fontFlags & 2) != 0)
+                style |= SWT.ITALIC;
+            int height = Math.max(1, (int) Math.round(pixelHeight * 72 / gc.getDevice().getDPI().y));
+            String key = name + '/' + height + '/' + style;
+            Font existing = fonts.get(key);
+            if (existing == null)
+                fonts.put(key, existing = new Font(gc.getDevice(), name, height, style));
+            return existing;
+        }
+
+        void dispose() {
+            gc.setFont(null);
+            setAlpha(0xFF);
+            for (Color color : colors.values())
+                color.dispose();
+            for (Font font : fonts.values())
+                font.dispose();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+/**
+ * Headless entry point for batch rendering DOT files. Usage:
+ *
+ * <pre>
+ * -application com.abstratt.graphviz.batchExport [-format png,svg] [-parallelism N] [-output dir] [-force] path...
+ * </pre>
+ *
+ * Paths can be DOT files or directories (searched recursively). Exits with a
+ * non-zero code if any output could not be produced.
+ *
+ * @see BatchExporter
+ */
+public class BatchExportApplication implements IApplication {
+
+    private static final Integer EXIT_FAILURES = 1;
+    private static final Integer EXIT_USAGE = 2;
+
+    public Object start(IApplicationContext context) throws Exception {
+        String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+        List<String> formats = Arrays.asList("png");
+        List<File> inputs = new ArrayList<File>();
+        Integer parallelism = null;
+        File outputDirectory = null;
+        boolean force = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-format".equals(args[i]))
+                    formats = Arrays.asList(args[++i].split(","));
+                else if ("-parallelism".equals(args[i]))
+                    parallelism = Integer.valueOf(args[++i]);
+                else if ("-output".equals(args[i]))
+                    outputDirectory = new File(args[++i]);
+                else if ("-force".equals(args[i]))
+                    force = true;
+                else if (args[i].startsWith("-"))
+                    return usage("Unknown option: " + args[i]);
+                else
+                    inputs.add(new File(args[i]).getAbsoluteFile());
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return usage("Missing option value");
+        } catch (NumberFormatException e) {
+            return usage("Invalid parallelism: " + e.getMessage());
+        }
+        if (inputs.isEmpty())
+            return usage("No inputs specified");
+        BatchExporter exporter = new BatchExporter(formats);
+        if (parallelism != null)
+            exporter.setParallelism(parallelism);
+        exporter.setOutputDirectory(outputDirectory);
+        exporter.setForce(force);
+        BatchExporter.Result result = exporter.export(inputs);
+        for (Map.Entry<File, IStatus> failure : result.getFailures().entrySet())
+            System.err.println(failure.getKey() + ": " + describe(failure.getValue()));
+        System.out.println(result);
+        return result.getFailed() == 0 ? IApplication.EXIT_OK : EXIT_FAILURES;
+    }
+
+    public void stop() {
+        // nothing to do
+    }
+
+    private static Integer usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Arguments: [-format png,svg] [-parallelism N] [-output dir] [-force] path...");
+        return EXIT_USAGE;
+    }
+
+    private static String describe(IStatus status) {
+        StringBuilder description = new StringBuilder(status.getMessage());
+        for (IStatus child : status.getChildren())
+            if (child.getSeverity() > IStatus.INFO)
+                description.append("\n\t").append(child.getMessage());
+        return description.toString();
+    }
+}
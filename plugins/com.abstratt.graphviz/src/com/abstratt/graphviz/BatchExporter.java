@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * Renders whole sets of DOT files (directory trees and/or individual files)
+ * without any UI, in parallel, running dot for many files at once. Outputs
+ * that are newer than their inputs are left alone unless rendering is forced.
+ */
+public class BatchExporter {
+    /**
+     * Extensions of files considered DOT files when walking directories.
+     */
+    public static final List<String> DOT_FILE_EXTENSIONS = Arrays.asList("dot", "gv"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    /**
+     * The outcome of a batch export.
+     */
+    public static class Result {
+        private final AtomicInteger rendered = new AtomicInteger();
+        private final AtomicInteger upToDate = new AtomicInteger();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final Map<File, IStatus> failures = Collections.synchronizedMap(new LinkedHashMap<File, IStatus>());
+        private long elapsedMillis;
+
+        public int getRendered() {
+            return rendered.get();
+        }
+
+        public int getUpToDate() {
+            return upToDate.get();
+        }
+
+        public int getFailed() {
+            return failures.size();
+        }
+
+        /**
+         * Returns the problems found, keyed by the output that could not be
+         * produced.
+         */
+        public Map<File, IStatus> getFailures() {
+            synchronized (failures) {
+                return new LinkedHashMap<File, IStatus>(failures);
+            }
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Returns how many outputs were rendered per second.
+         */
+        public double getThroughput() {
+            return elapsedMillis == 0 ? 0 : getRendered() * 1000d / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rendered, %d up to date, %d failed in %.1fs (%.1f outputs/s, %d KB of DOT input)",
+                    getRendered(), getUpToDate(), getFailed(), elapsedMillis / 1000d, getThroughput(),
+                    bytesIn.get() / 1024);
+        }
+    }
+
+    private final List<String> formats;
+    private int parallelism = RenderScheduler.getDefaultLimit();
+    private File outputDirectory;
+    private boolean force;
+
+    /**
+     * @param formats
+     *            the output formats to produce for every input (as in dot's
+     *            <code>-T</code> option)
+     */
+    public BatchExporter(List<String> formats) {
+        if (formats.isEmpty())
+            throw new IllegalArgumentException("At least one output format is required");
+        this.formats = new ArrayList<String>(formats);
+    }
+
+    /**
+     * How many inputs to render at the same time. Defaults to the number of
+     * available processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Where to write outputs to, mirroring the layout of input directories.
+     * By default (<code>null</code>), outputs are written next to their
+     * inputs.
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Whether to render outputs even if they are newer than their inputs.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    public Result export(Collection<File> inputs) {
+        return export(inputs, new NullProgressMonitor());
+    }
+
+    /**
+     * Renders the given inputs. Directories are searched recursively for DOT
+     * files. Inputs are split into as many groups as the parallelism allows,
+     * and each group is rendered with as few dot runs as possible (see
+     * {@link GraphViz#generateAll(Map, String, IProgressMonitor)}).
+     */
+    public Result export(Collection<File> inputs, final IProgressMonitor monitor) {
+        final Result result = new Result();
+        long start = System.currentTimeMillis();
+        List<Export> toRender = collectExports(inputs);
+        monitor.beginTask("Rendering DOT files", toRender.size());
+        // for each format, the inputs to render in that format
+        Map<String, List<Export>> byFormat = new LinkedHashMap<String, List<Export>>();
+        for (Export export : toRender) {
+            if (!export.input.isFile()) {
+                result.failures.put(export.output, new Status(IStatus.ERROR, GraphVizActivator.ID, "Could not read "
+                        + export.input));
+                monitor.worked(1);
+                continue;
+            }
+            if (!force && export.output.isFile() && export.output.lastModified() >= export.input.lastModified()) {
+                result.upToDate.incrementAndGet();
+                monitor.worked(1);
+                continue;
+            }
+            List<Export> sameFormat = byFormat.get(export.format);
+            if (sameFormat == null)
+                byFormat.put(export.format, sameFormat = new ArrayList<Export>());
+            sameFormat.add(export);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (Map.Entry<String, List<Export>> sameFormat : byFormat.entrySet()) {
+                final String format = sameFormat.getKey();
+                List<Export> exports = sameFormat.getValue();
+                int groupSize = (exports.size() + parallelism - 1) / parallelism;
+                for (int i = 0; i < exports.size(); i += groupSize) {
+                    final List<Export> group = exports.subList(i, Math.min(exports.size(), i + groupSize));
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            if (monitor.isCanceled())
+                                return;
+                            try {
+                                render(group, format, result, monitor);
+                            } catch (RuntimeException e) {
+                                for (Export export : group)
+                                    result.failures.put(export.output, new Status(IStatus.ERROR, GraphVizActivator.ID,
+                                            "Could not render " + export.input, e));
+                            }
+                            // progress monitors are not meant to be used concurrently
+                            synchronized (monitor) {
+                                monitor.worked(group.size());
+                            }
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            result.elapsedMillis = System.currentTimeMillis() - start;
+            monitor.done();
+        }
+        return result;
+    }
+
+    private void render(List<Export> group, String format, Result result, IProgressMonitor monitor) {
+        Map<File, File> outputs = new LinkedHashMap<File, File>();
+        for (Export export : group) {
+            export.output.getParentFile().mkdirs();
+            result.bytesIn.addAndGet(export.input.length());
+            outputs.put(export.input, export.output);
+        }
+        Map<File, IStatus> statuses;
+        try {
+            statuses = GraphViz.generateAll(outputs, format, monitor);
+        } catch (OperationCanceledException e) {
+            return;
+        }
+        for (Export export : group) {
+            IStatus status = statuses.get(export.input);
+            if (status.getSeverity() < IStatus.ERROR)
+                result.rendered.incrementAndGet();
+            else
+                result.failures.put(export.output, status);
+        }
+    }
+
+    /**
+     * One output to produce from one input.
+     */
+    private class Export {
+        final File input;
+        final File output;
+        final String format;
+
+        Export(File input, File output, String format) {
+            this.input = input;
+            this.output = output;
+            this.format = format;
+        }
+    }
+
+    private List<Export> collectExports(Collection<File> inputs) {
+        List<Export> exports = new ArrayList<Export>();
+        for (File input : inputs) {
+            // relative inputs would have no parent to write outputs to
+            input = input.getAbsoluteFile();
+            if (input.isDirectory())
+                collectExports(input, input, exports);
+            else
+                addExports(input, input.getName(), exports);
+        }
+        return exports;
+    }
+
+    private void collectExports(File root, File directory, List<Export> exports) {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        Arrays.sort(children);
+        for (File child : children)
+            if (child.isDirectory())
+                collectExports(root, child, exports);
+            else if (DOT_FILE_EXTENSIONS.contains(getExtension(child.getName()).toLowerCase()))
+                addExports(child, root.toURI().relativize(child.toURI()).getPath(), exports);
+    }
+
+    /**
+     * Adds one export per format for the given input.
+     * 
+     * @param relativePath
+     *            the input path relative to the directory it was found in
+     *            (used for mirroring the input layout in the output directory)
+     */
+    private void addExports(File input, String relativePath, List<Export> exports) {
+        String extension = getExtension(relativePath);
+        String basePath = extension.isEmpty() ? relativePath : relativePath.substring(0, relativePath.length()
+                - extension.length() - 1);
+        for (String format : formats) {
+            // renderer/formatter qualifiers (as in "png:cairo") are not part of the file name
+            String outputPath = basePath + '.' + format.split(":")[0];
+            File output = outputDirectory == null ? new File(input.getParentFile(), new File(outputPath).getName())
+                    : new File(outputDirectory, outputPath);
+            // never overwrite an input (as when asking for DOT output)
+            if (!output.getAbsoluteFile().equals(input.getAbsoluteFile()))
+                exports.add(new Export(input, output, format));
+        }
+    }
+
+    private static String getExtension(String fileName) {
+        int lastDot = fileName.lastIndexOf('.');
+        int lastSeparator = fileName.lastIndexOf('/');
+        return lastDot > lastSeparator ? fileName.substring(lastDot + 1) : "";
+    }
+}
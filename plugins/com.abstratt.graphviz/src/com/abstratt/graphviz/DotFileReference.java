@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A DOT file in the local file system, as of a given modification stamp.
+ * Handing one to {@link GraphViz} lets dot read the file itself, instead of
+ * having its contents copied around first. Two references are equal if they
+ * point to the same file with the same contents, as far as can be told: by
+ * their contents keys if both have one (so touching a file or saving it
+ * without changes does not make it a different input), otherwise by their
+ * modification stamps.
+ */
+public class DotFileReference {
+    private final File location;
+    private final long modificationStamp;
+    private final String contentsKey;
+    /** The file's time stamp and length when this reference was created. */
+    private final long lastModified;
+    private final long length;
+
+    /**
+     * @param location
+     *            where the file is
+     * @param modificationStamp
+     *            identifies the version of the file being referred to (for
+     *            instance, a workspace modification stamp or a time stamp)
+     */
+    public DotFileReference(File location, long modificationStamp) {
+        this.location = location.getAbsoluteFile();
+        this.modificationStamp = modificationStamp;
+        // taken before the contents are ever read, so changes made since are
+        // noticed (see isUnchanged())
+        this.lastModified = this.location.lastModified();
+        this.length = this.location.length();
+        this.contentsKey = null;
+    }
+
+    private DotFileReference(DotFileReference unread, String contentsKey) {
+        this.location = unread.location;
+        this.modificationStamp = unread.modificationStamp;
+        this.lastModified = unread.lastModified;
+        this.length = unread.length;
+        this.contentsKey = contentsKey;
+    }
+
+    /**
+     * Creates a reference to the given file, reading it through to compute
+     * its contents key (see {@link #getContentsKey()}), which is then used
+     * instead of reading the file again when rendering it.
+     * 
+     * @param modificationStamp
+     *            identifies the version of the file being referred to (for
+     *            instance, a workspace modification stamp or a time stamp)
+     */
+    public static DotFileReference read(File location, long modificationStamp) throws IOException {
+        DotFileReference unread = new DotFileReference(location, modificationStamp);
+        return new DotFileReference(unread, RenderCache.computeContentsKey(unread.location));
+    }
+
+    public File getLocation() {
+        return location;
+    }
+
+    public long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    /**
+     * Returns the key for the file contents (see
+     * {@link RenderCache#computeContentsKey(File)}), or <code>null</code> if
+     * they were not read.
+     */
+    public String getContentsKey() {
+        return contentsKey;
+    }
+
+    /**
+     * Returns whether the file looks the same (time stamp and length) as when
+     * this reference was created, so what was read from it since still stands
+     * for the contents referred to.
+     */
+    boolean isUnchanged() {
+        return location.lastModified() == lastModified && location.length() == length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof DotFileReference))
+            return false;
+        DotFileReference other = (DotFileReference) obj;
+        if (!location.equals(other.location))
+            return false;
+        if (contentsKey != null && other.contentsKey != null)
+            return contentsKey.equals(other.contentsKey);
+        return modificationStamp == other.modificationStamp;
+    }
+
+    @Override
+    public int hashCode() {
+        // references to different modification stamps may still be equal
+        return location.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return location + "@" + modificationStamp;
+    }
+}
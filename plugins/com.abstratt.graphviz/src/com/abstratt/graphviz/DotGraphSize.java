@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An estimate of how large a graph is, obtained by scanning its DOT
+ * description in a single pass, without parsing it. Nodes are counted as the
+ * distinct node ids mentioned, edges as the edge operators found (so an edge
+ * from or to a subgraph counts as one), and clusters as the subgraphs whose
+ * name starts with <code>cluster</code>. Good enough to tell a graph with a
+ * hundred nodes from one with fifty thousand.
+ *
+ * @see LayoutPolicy
+ */
+public class DotGraphSize {
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("graph", "digraph", "subgraph",
+            "node", "edge", "strict"));
+    private static final int MAX_KEYWORD_LENGTH = 8;
+
+    private final int nodes;
+    private final int edges;
+    private final int clusters;
+    private final boolean layoutAttribute;
+
+    public DotGraphSize(int nodes, int edges, int clusters, boolean layoutAttribute) {
+        this.nodes = nodes;
+        this.edges = edges;
+        this.clusters = clusters;
+        this.layoutAttribute = layoutAttribute;
+    }
+
+    public static DotGraphSize scan(byte[] dotContents) {
+        try {
+            return scan(new ByteArrayInputStream(dotContents));
+        } catch (IOException e) {
+            // not from a byte array
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Scans the given DOT contents. The stream is read to the end, but not
+     * closed.
+     */
+    public static DotGraphSize scan(InputStream dotContents) throws IOException {
+        return new Scanner(dotContents).scan();
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getEdges() {
+        return edges;
+    }
+
+    public int getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Returns whether the graph sets the <code>layout</code> attribute, which
+     * chooses a layout engine.
+     */
+    public boolean hasLayoutAttribute() {
+        return layoutAttribute;
+    }
+
+    @Override
+    public String toString() {
+        return nodes + " nodes, " + edges + " edges, " + clusters + " clusters";
+    }
+
+    /**
+     * Goes through DOT tokens, keeping track of just enough context to tell
+     * node ids from graph names, attribute names and values, and ports.
+     * Bytes are taken as characters one by one, which is fine for telling
+     * ids apart.
+     */
+    private static class Scanner {
+        private final InputStream input;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        /** Whether the last byte read started a line. */
+        private boolean atLineStart;
+        private int previous = '\n';
+
+        /** Reused for reading ids. */
+        private final StringBuilder idBuffer = new StringBuilder();
+        private final Set<String> nodeIds = new HashSet<String>();
+        private int edges;
+        private int clusters;
+        private boolean layoutAttribute;
+
+        /** Nesting of attribute lists, where ids are never nodes. */
+        private int attributeDepth;
+        /** An id that is a node, unless it turns out to be an attribute name. */
+        private String pending;
+        /** The last id read, in or out of attribute lists. */
+        private String lastId;
+        private boolean expectingValue;
+        private boolean expectingPort;
+        private boolean expectingName;
+        private boolean expectingClusterName;
+
+        Scanner(InputStream input) {
+            this.input = input;
+        }
+
+        DotGraphSize scan() throws IOException {
+            int c;
+            while ((c = next()) >= 0) {
+                if (c <= ' ')
+                    continue;
+                if ((c == '#' && atLineStart) || (c == '/' && peek() == '/')) {
+                    // line comments and preprocessor output
+                    skipLine();
+                } else if (c == '/' && peek() == '*') {
+                    next();
+                    skipBlockComment();
+                } else if (c == '"') {
+                    id(readQuoted(), false);
+                } else if (c == '<') {
+                    id(readHtml(), false);
+                } else if (c == '-' && (peek() == '>' || peek() == '-')) {
+                    next();
+                    endStatementPart();
+                    if (attributeDepth == 0)
+                        edges++;
+                } else if (isIdStart(c)) {
+                    id(readId(c), true);
+                } else if (c == '=') {
+                    layoutAttribute |= "layout".equalsIgnoreCase(lastId);
+                    // the id before was an attribute name, not a node
+                    pending = null;
+                    endStatementPart();
+                    expectingValue = true;
+                } else if (c == ':') {
+                    expectingPort = true;
+                } else if (c != '+') {
+                    // '+' concatenates strings, anything else ends a part of
+                    // a statement
+                    if (c == '[')
+                        attributeDepth++;
+                    else if (c == ']')
+                        attributeDepth = Math.max(0, attributeDepth - 1);
+                    endStatementPart();
+                }
+            }
+            commitPending();
+            return new DotGraphSize(nodeIds.size(), edges, clusters, layoutAttribute);
+        }
+
+        private void id(String id, boolean unquoted) {
+            lastId = id;
+            if (attributeDepth > 0)
+                return;
+            if (expectingValue || expectingPort) {
+                expectingValue = false;
+                expectingPort = false;
+                return;
+            }
+            if (expectingName) {
+                if (expectingClusterName && id.startsWith("cluster"))
+                    clusters++;
+                expectingName = false;
+                expectingClusterName = false;
+                return;
+            }
+            commitPending();
+            String keyword = unquoted && id.length() <= MAX_KEYWORD_LENGTH ? id.toLowerCase() : null;
+            if (keyword != null && KEYWORDS.contains(keyword)) {
+                // graph and subgraph names are not nodes
+                expectingName = keyword.equals("graph") || keyword.equals("digraph") || keyword.equals("subgraph");
+                expectingClusterName = keyword.equals("subgraph");
+                return;
+            }
+            pending = id;
+        }
+
+        private void endStatementPart() {
+            commitPending();
+            expectingValue = false;
+            expectingPort = false;
+            expectingName = false;
+            expectingClusterName = false;
+            lastId = null;
+        }
+
+        private void commitPending() {
+            if (pending != null)
+                nodeIds.add(pending);
+            pending = null;
+        }
+
+        private int peek() throws IOException {
+            if (position == limit) {
+                position = 0;
+                limit = Math.max(0, input.read(buffer));
+                if (limit == 0)
+                    return -1;
+            }
+            return buffer[position] & 0xFF;
+        }
+
+        private int next() throws IOException {
+            int c = peek();
+            if (c < 0)
+                return c;
+            position++;
+            atLineStart = previous == '\n';
+            previous = c;
+            return c;
+        }
+
+        private static boolean isIdStart(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '.'
+                    || c == '-' || c >= 0x80;
+        }
+
+        private String readId(int first) throws IOException {
+            StringBuilder id = idBuffer;
+            id.setLength(0);
+            id.append((char) first);
+            int c;
+            // only numerals have a '-', and only in front
+            while ((c = peek()) >= 0 && c != '-' && isIdStart(c))
+                id.append((char) next());
+            return id.toString();
+        }
+
+        private String readQuoted() throws IOException {
+            StringBuilder value = new StringBuilder();
+            int c;
+            while ((c = next()) >= 0 && c != '"') {
+                if (c == '\\' && peek() >= 0) {
+                    int escaped = next();
+                    // a backslash before a line break continues the line
+                    if (escaped == '\n' || escaped == '\r')
+                        continue;
+                    if (escaped != '"')
+                        value.append('\\');
+                    c = escaped;
+                }
+                value.append((char) c);
+            }
+            return value.toString();
+        }
+
+        private String readHtml() throws IOException {
+            StringBuilder value = new StringBuilder();
+            int c;
+            for (int nesting = 1; (c = next()) >= 0;) {
+                if (c == '<')
+                    nesting++;
+                else if (c == '>' && --nesting == 0)
+                    break;
+                value.append((char) c);
+            }
+            return value.toString();
+        }
+
+        private void skipLine() throws IOException {
+            int c;
+            do
+                c = next();
+            while (c >= 0 && c != '\n');
+        }
+
+        private void skipBlockComment() throws IOException {
+            int c;
+            while ((c = next()) >= 0)
+                if (c == '*' && peek() == '/') {
+                    next();
+                    return;
+                }
+        }
+    }
+}
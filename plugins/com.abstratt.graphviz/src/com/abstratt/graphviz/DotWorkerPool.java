@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+
+import com.abstratt.pluginutils.ConfigUtils;
+import com.abstratt.pluginutils.Metrics;
+
+/**
+ * Keeps dot processes running between renders, so rendering many small graphs
+ * does not pay for starting dot every time. dot renders every graph it reads
+ * from its standard input as soon as the graph is complete, so a worker is
+ * fed one graph at a time and its output is split at the line that ends a
+ * document in the requested format. Hence only text formats are supported
+ * (see {@link #supports(String)}).
+ * <p>
+ * Workers are recycled after a number of renders, discarded whenever
+ * something goes wrong, and stopped after some time without use.
+ * </p>
+ */
+public class DotWorkerPool {
+    /**
+     * Name of the system property (or environment variable) that can be set
+     * to <code>false</code> to always start a new dot process per render.
+     */
+    public static final String ENABLED = "com.abstratt.graphviz.workers"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for the number of
+     * graphs a worker renders before being replaced.
+     */
+    public static final String MAX_RENDERS = "com.abstratt.graphviz.workers.maxRenders"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for how long (in
+     * milliseconds) an idle worker is kept around.
+     */
+    public static final String IDLE_TIMEOUT = "com.abstratt.graphviz.workers.idleTimeout"; //$NON-NLS-1$
+
+    public static final long DEFAULT_MAX_RENDERS = 200;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+    private static final long RENDER_TIME_LIMIT = 90000;
+    private static final long CANCELLATION_CHECK_INTERVAL = 50;
+    /**
+     * How long to wait for output once dot reported an error, before giving
+     * up on the worker.
+     */
+    private static final long ERROR_GRACE_PERIOD = 250;
+    /**
+     * How often a worker's error output is collected while it is not
+     * rendering.
+     */
+    private static final long ERROR_POLL_INTERVAL = 20;
+
+    /**
+     * The line ending a document, for each format supported. It must start at
+     * the first column: nested structures (subgraphs, clusters, JSON objects)
+     * close with indented lines.
+     */
+    private static final Map<String, String> TERMINATORS = new HashMap<String, String>();
+
+    static {
+        TERMINATORS.put("svg", "</svg>");
+        TERMINATORS.put("plain", "stop");
+        TERMINATORS.put("plain-ext", "stop");
+        for (String format : Arrays.asList("json", "json0", "dot", "gv", "canon", "xdot", "xdot1.2", "xdot1.4"))
+            TERMINATORS.put(format, "}");
+    }
+
+    /** Marks the end of a worker's output. */
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+    /** Stands for the document of a worker that took too long. */
+    private static final byte[] TIMED_OUT = new byte[0];
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread reader = new Thread(r, "dot worker reader");
+            reader.setDaemon(true);
+            return reader;
+        }
+    });
+
+    /**
+     * A running dot process, rendering one graph at a time.
+     */
+    private static class Worker {
+        private final List<String> command;
+        private final Process process;
+        private final OutputStream input;
+        private final InputStream errors;
+        private final BlockingQueue<byte[]> documents = new LinkedBlockingQueue<byte[]>();
+        private final ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+        private long errorReportedAt;
+        private int renders;
+        private long lastUsed;
+
+        Worker(List<String> command, File baseDir, String terminator) throws IOException {
+            this.command = command;
+            long start = System.nanoTime();
+            this.process = Runtime.getRuntime().exec(command.toArray(new String[command.size()]), null, baseDir);
+            Metrics.timer("process.spawn").recordSince(start);
+            Metrics.counter("worker.spawns").increment();
+            this.input = process.getOutputStream();
+            readDocuments(process.getInputStream(), terminator);
+            this.errors = process.getErrorStream();
+            readErrors();
+        }
+
+        private void readDocuments(final InputStream output, final String terminator) {
+            READERS.submit(new Runnable() {
+                public void run() {
+                    ByteArrayOutputStream document = new ByteArrayOutputStream();
+                    ByteArrayOutputStream line = new ByteArrayOutputStream();
+                    try {
+                        byte[] buffer = new byte[8 * 1024];
+                        int read;
+                        while ((read = output.read(buffer)) >= 0) {
+                            int lineStart = 0;
+                            for (int i = 0; i < read; i++) {
+                                if (buffer[i] != '\n')
+                                    continue;
+                                line.write(buffer, lineStart, i + 1 - lineStart);
+                                lineStart = i + 1;
+                                line.writeTo(document);
+                                if (isTerminator(line, terminator)) {
+                                    documents.add(document.toByteArray());
+                                    document.reset();
+                                }
+                                line.reset();
+                            }
+                            line.write(buffer, lineStart, read - lineStart);
+                        }
+                    } catch (IOException e) {
+                        // the process went away, same as reaching the end
+                    } finally {
+                        documents.add(END_OF_OUTPUT);
+                    }
+                }
+            });
+        }
+
+        private void readErrors() {
+            READERS.submit(new Runnable() {
+                public void run() {
+                    try {
+                        while (collectErrors())
+                            Thread.sleep(ERROR_POLL_INTERVAL);
+                    } catch (IOException e) {
+                        // the process went away
+                    } catch (InterruptedException e) {
+                        // shutting down
+                    }
+                }
+            });
+        }
+
+        /**
+         * Moves the error output dot has written so far into
+         * {@link #errorOutput}. Never blocks, and only reads while holding the
+         * lock on {@link #errorOutput}, so once a caller holding the lock sees
+         * nothing left to read, all error output written so far has been
+         * collected.
+         * 
+         * @return whether there might be more error output to come
+         */
+        private boolean collectErrors() throws IOException {
+            synchronized (errorOutput) {
+                byte[] buffer = null;
+                boolean collected = false;
+                int available;
+                while ((available = errors.available()) > 0) {
+                    if (buffer == null)
+                        buffer = new byte[8 * 1024];
+                    int read = errors.read(buffer, 0, Math.min(available, buffer.length));
+                    if (read < 0)
+                        return false;
+                    errorOutput.write(buffer, 0, read);
+                    if (errorReportedAt == 0 && new String(buffer, 0, read, StandardCharsets.UTF_8).contains("Error"))
+                        errorReportedAt = System.currentTimeMillis();
+                    collected = true;
+                }
+                return collected || process.isAlive();
+            }
+        }
+
+        /**
+         * Returns the error output produced since the last call. dot writes
+         * errors and warnings as it finds them, before the document they are
+         * about is complete, so once a document has been read, its error
+         * output is all included.
+         */
+        byte[] takeErrorOutput() {
+            synchronized (errorOutput) {
+                try {
+                    collectErrors();
+                } catch (IOException e) {
+                    // the process went away, keep what was collected
+                }
+                byte[] taken = errorOutput.toByteArray();
+                errorOutput.reset();
+                errorReportedAt = 0;
+                return taken;
+            }
+        }
+
+        long getErrorReportedAt() {
+            synchronized (errorOutput) {
+                return errorReportedAt;
+            }
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        void destroy() {
+            IOUtils.closeQuietly(input);
+            process.destroy();
+        }
+    }
+
+    private final Map<List<String>, Deque<Worker>> idle = new HashMap<List<String>, Deque<Worker>>();
+    private final long maxRenders;
+    private final long idleTimeout;
+    private final ScheduledExecutorService reaper;
+    private boolean shutdown;
+
+    public DotWorkerPool() {
+        maxRenders = Math.max(1, RenderCache.getLimit(MAX_RENDERS, DEFAULT_MAX_RENDERS));
+        idleTimeout = Math.max(1, RenderCache.getLimit(IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dot worker reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reap(System.currentTimeMillis() - idleTimeout);
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns whether workers are enabled (they are, unless the
+     * {@link #ENABLED} switch is set to <code>false</code>).
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(ConfigUtils.get(ENABLED, Boolean.TRUE.toString()));
+    }
+
+    /**
+     * Returns whether workers can produce the given format.
+     */
+    public static boolean supports(String format) {
+        return TERMINATORS.containsKey(format);
+    }
+
+    /**
+     * Returns whether the given DOT contents consist of exactly one complete
+     * graph. Anything else could leave a worker waiting for the rest of a
+     * graph, or produce output that would be taken for the next render's.
+     */
+    public static boolean isSingleGraph(byte[] dotContents) {
+        int depth = 0;
+        int htmlDepth = 0;
+        int graphs = 0;
+        boolean afterGraph = false;
+        for (int i = 0; i < dotContents.length; i++) {
+            byte current = dotContents[i];
+            byte next = i + 1 < dotContents.length ? dotContents[i + 1] : 0;
+            if (htmlDepth > 0) {
+                if (current == '<')
+                    htmlDepth++;
+                else if (current == '>')
+                    htmlDepth--;
+                continue;
+            }
+            if (current == '"') {
+                // skip to the closing quote
+                for (i++; i < dotContents.length && dotContents[i] != '"'; i++)
+                    if (dotContents[i] == '\\')
+                        i++;
+                if (i >= dotContents.length)
+                    return false;
+            } else if (current == '/' && next == '/' || current == '#' && (i == 0 || dotContents[i - 1] == '\n')) {
+                while (i < dotContents.length && dotContents[i] != '\n')
+                    i++;
+                continue;
+            } else if (current == '/' && next == '*') {
+                int end = indexOf(dotContents, "*/", i + 2);
+                if (end < 0)
+                    return false;
+                i = end + 1;
+                continue;
+            } else if (current == '<')
+                htmlDepth++;
+            else if (current == '{')
+                depth++;
+            else if (current == '}') {
+                if (--depth < 0)
+                    return false;
+                if (depth == 0) {
+                    graphs++;
+                    afterGraph = true;
+                    continue;
+                }
+            }
+            if (afterGraph && !Character.isWhitespace(current) && current != ';')
+                return false;
+        }
+        return graphs == 1 && depth == 0 && htmlDepth == 0;
+    }
+
+    private static int indexOf(byte[] contents, String toFind, int from) {
+        byte[] bytes = toFind.getBytes(StandardCharsets.US_ASCII);
+        outer: for (int i = from; i <= contents.length - bytes.length; i++) {
+            for (int j = 0; j < bytes.length; j++)
+                if (contents[i + j] != bytes[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the given line (including its line break) ends a
+     * document: it must consist of the terminator alone, starting at the first
+     * column, followed by <code>\n</code> or <code>\r\n</code>.
+     */
+    static boolean isTerminator(ByteArrayOutputStream line, String terminator) {
+        int length = line.size();
+        if (length != terminator.length() + 1 && length != terminator.length() + 2)
+            return false;
+        String text = line.toString();
+        return text.equals(terminator + "\n") || text.equals(terminator + "\r\n");
+    }
+
+    /**
+     * Renders the given graph with a worker.
+     *
+     * @param options
+     *            dot options, including the output format
+     * @return the outcome, or <code>null</code> if the worker failed in a way
+     *         that warrants trying again with a new dot process (which will
+     *         also properly report any problems with the graph)
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public IStatus render(GraphVizSettings settings, String format, List<String> options, byte[] dotContents,
+            OutputStream output, IProgressMonitor monitor) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(settings.getDotLocation().toOSString());
+        command.addAll(settings.getCommandLineOptions());
+        command.addAll(options);
+        RenderScheduler scheduler = GraphVizActivator.getInstance().getRenderScheduler();
+        long requested = System.nanoTime();
+        scheduler.acquire(monitor);
+        long started = System.nanoTime();
+        Metrics.timer("dot.wait").record(started - requested);
+        Worker worker = null;
+        byte[] errorOutput = new byte[0];
+        boolean reusable = false;
+        try {
+            worker = take(command);
+            if (worker == null)
+                worker = new Worker(command, settings.getDotLocation().removeLastSegments(1).toFile(),
+                        TERMINATORS.get(format));
+            worker.takeErrorOutput();
+            worker.input.write(dotContents);
+            worker.input.write('\n');
+            worker.input.flush();
+            byte[] document = awaitDocument(worker, monitor);
+            errorOutput = worker.takeErrorOutput();
+            if (document == TIMED_OUT)
+                // a new dot would not fare any better
+                return new Status(IStatus.ERROR, GraphVizActivator.ID,
+                        "Graphviz process did not finish in a timely way.");
+            if (document == null) {
+                Metrics.counter("worker.failures").increment();
+                return null;
+            }
+            Metrics.counter("worker.renders").increment();
+            // anything else already read means the output was not split
+            // where it should, so the worker cannot be trusted anymore
+            reusable = worker.documents.isEmpty();
+            output.write(document);
+            if (errorOutput.length > 0)
+                return new Status(IStatus.WARNING, GraphVizActivator.ID, "dot produced the following error output: \n"
+                        + new String(errorOutput));
+            return Status.OK_STATUS;
+        } catch (IOException e) {
+            // most likely, the worker died on us
+            Metrics.counter("worker.failures").increment();
+            return null;
+        } finally {
+            scheduler.release();
+            Metrics.timer("dot.run").recordSince(started);
+            RenderDiagnostics.Record record = GraphViz.getCurrentRecord();
+            if (record != null)
+                record.ran(null, errorOutput, errorOutput.length, started - requested, System.nanoTime() - started);
+            if (worker != null) {
+                if (reusable)
+                    giveBack(worker);
+                else
+                    worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * Waits for the worker to produce a whole document.
+     *
+     * @return the document, {@link #TIMED_OUT}, or <code>null</code> if the
+     *         worker died or reported an error without producing anything
+     */
+    private byte[] awaitDocument(Worker worker, IProgressMonitor monitor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RENDER_TIME_LIMIT;
+        while (true) {
+            byte[] document = worker.documents.poll(CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            if (document == END_OF_OUTPUT)
+                return null;
+            if (document != null)
+                return document;
+            if (monitor != null && monitor.isCanceled())
+                throw new OperationCanceledException();
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                Metrics.counter("dot.timeouts").increment();
+                return TIMED_OUT;
+            }
+            long errorReportedAt = worker.getErrorReportedAt();
+            if (errorReportedAt > 0 && now - errorReportedAt > ERROR_GRACE_PERIOD)
+                return null;
+        }
+    }
+
+    private synchronized Worker take(List<String> command) {
+        Deque<Worker> available = idle.get(command);
+        while (available != null && !available.isEmpty()) {
+            Worker worker = available.pop();
+            if (worker.isAlive())
+                return worker;
+            worker.destroy();
+        }
+        return null;
+    }
+
+    private void giveBack(Worker worker) {
+        if (++worker.renders >= maxRenders) {
+            Metrics.counter("worker.recycles").increment();
+            worker.destroy();
+            return;
+        }
+        worker.lastUsed = System.currentTimeMillis();
+        synchronized (this) {
+            if (!shutdown) {
+                Deque<Worker> available = idle.get(worker.command);
+                if (available == null)
+                    idle.put(worker.command, available = new ArrayDeque<Worker>());
+                // most recently used first, so the others can expire
+                available.push(worker);
+                return;
+            }
+        }
+        worker.destroy();
+    }
+
+    /**
+     * Stops workers that have not been used since the given time.
+     */
+    private synchronized void reap(long usedBefore) {
+        for (Iterator<Deque<Worker>> allAvailable = idle.values().iterator(); allAvailable.hasNext();) {
+            Deque<Worker> available = allAvailable.next();
+            for (Iterator<Worker> workers = available.iterator(); workers.hasNext();) {
+                Worker worker = workers.next();
+                if (worker.lastUsed < usedBefore) {
+                    worker.destroy();
+                    workers.remove();
+                }
+            }
+            if (available.isEmpty())
+                allAvailable.remove();
+        }
+    }
+
+    /**
+     * Stops all idle workers. Workers busy rendering are stopped once they
+     * are done.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            reap(Long.MAX_VALUE);
+        }
+        reaper.shutdownNow();
+    }
+}
@@ -11,79 +11,283 @@
  *******************************************************************************/
 package com.abstratt.graphviz;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 
 import com.abstratt.graphviz.ProcessController.TimeOutException;
 import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 /**
  * The entry point to the Graphviz support API.
  */
-// TODO generate and load have a lot in common, refactor
-// TODO we should just pass the input stream directly (or buffered) to Graphviz,
-// instead of creating a temporary file
 public class GraphViz {
-    private static final String DOT_EXTENSION = ".dot"; //$NON-NLS-1$
-    private static final String TMP_FILE_PREFIX = "graphviz"; //$NON-NLS-1$
     private static final int MAX_DOT_LENGTH_TO_LOG = 4 * 64 * 1024;
+    /** How long a dot run may take, in milliseconds. */
+    private static final long DOT_TIME_LIMIT = 90000;
+    /**
+     * Keeps batch command lines well under the most restrictive platform
+     * limit (32K characters on Windows).
+     */
+    private static final int MAX_BATCH_COMMAND_LENGTH = 24 * 1024;
+    /**
+     * Bounds how many inputs a single dot run handles, so one slow input
+     * does not hold back too many others.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+    /**
+     * Name of the system property (or environment variable) that, when set to
+     * <code>true</code>, makes dot be invoked with temporary input and output
+     * files instead of having its input and output piped.
+     */
+    public static final String USE_TEMP_FILES = "com.abstratt.graphviz.useTempFiles"; //$NON-NLS-1$
+    /** The record for the render in progress in the current thread, if any. */
+    private static final ThreadLocal<RenderDiagnostics.Record> CURRENT_RECORD = new ThreadLocal<RenderDiagnostics.Record>();
 
     public static void generate(final InputStream input, String format, int dimensionX, int dimensionY,
             IPath outputLocation) throws CoreException {
         MultiStatus status = new MultiStatus(GraphVizActivator.ID, 0, "Errors occurred while running Graphviz", null);
-        File dotInputFile = null, dotOutputFile = outputLocation.toFile();
-        // we keep the input in memory so we can include it in error messages
-        ByteArrayOutputStream dotContents = new ByteArrayOutputStream();
         try {
-            // determine the temp input location
-            dotInputFile = File.createTempFile(TMP_FILE_PREFIX, DOT_EXTENSION);
-            // dump the contents from the input stream into the temporary file
-            // to be submitted to dot
-            FileOutputStream tmpDotOutputStream = null;
-            try {
-                IOUtils.copy(input, dotContents);
-                tmpDotOutputStream = new FileOutputStream(dotInputFile);
-                IOUtils.copy(new ByteArrayInputStream(dotContents.toByteArray()), tmpDotOutputStream);
-            } finally {
-                IOUtils.closeQuietly(tmpDotOutputStream);
-            }
-            IStatus result = runDot(format, dimensionX, dimensionY, dotInputFile, dotOutputFile);
-            status.add(result);
-            System.out.println(dotContents.toString());
-            if (!result.isOK()) {
-            	LogUtils.debug(GraphVizActivator.ID, "A problem was detected, dumping DOT output to console");
-                System.out.println(dotContents.toString());
-            }
-            if (dotOutputFile.isFile() && dotOutputFile.length() > 0) {
+            // we keep the input in memory so we can include it in error messages
+            if (generate(inMemory(IOUtils.toByteArray(input)), format, dimensionX, dimensionY,
+                    outputLocation.toFile(), status))
                 // success! (or kind of)
                 return;
-            }
         } catch (IOException e) {
             status.add(new Status(IStatus.ERROR, GraphVizActivator.ID, "", e));
         } finally {
-            dotInputFile.delete();
             IOUtils.closeQuietly(input);
         }
         throw new CoreException(status);
     }
 
+    /**
+     * Like {@link #generate(InputStream, String, int, int, IPath)}, but
+     * letting dot read its input from the given file.
+     */
+    public static void generate(DotFileReference input, String format, int dimensionX, int dimensionY,
+            IPath outputLocation) throws CoreException {
+        MultiStatus status = new MultiStatus(GraphVizActivator.ID, 0, "Errors occurred while running Graphviz", null);
+        try {
+            if (generate(inFile(input), format, dimensionX, dimensionY, outputLocation.toFile(), status))
+                return;
+        } catch (IOException e) {
+            status.add(new Status(IStatus.ERROR, GraphVizActivator.ID, "", e));
+        }
+        throw new CoreException(status);
+    }
+
+    /**
+     * Renders straight into the given file, which is only created once dot
+     * starts producing output, so the image is never held in memory as a
+     * whole (unless it is small enough to be cached).
+     * 
+     * @return whether dot produced anything
+     */
+    private static boolean generate(DotInput dotInput, String format, int dimensionX, int dimensionY,
+            File outputFile, MultiStatus status) throws IOException {
+        RenderCache cache = GraphVizActivator.getInstance().getRenderCache();
+        RenderOutput output = new RenderOutput(outputFile, cache == null ? 0 : cache.getMaxEntrySize());
+        try {
+            render(GraphVizActivator.getInstance().getSettings(), dotInput, format, dimensionX, dimensionY, status,
+                    null, output);
+        } finally {
+            output.close();
+        }
+        if (!status.isOK())
+            status.add(logInput(dotInput));
+        return output.getSize() > 0;
+    }
+
+    /**
+     * Renders many DOT files in the given format, packing them into as few
+     * dot runs as possible (using dot's <code>-O</code> option) instead of
+     * running dot once per file. Problems reported by dot are mapped back to
+     * the input they were reported for, and inputs for which a batch run
+     * produced nothing without saying why are rendered again on their own.
+     * <p>
+     * Formats with renderer or formatter qualifiers (as in
+     * <code>png:cairo</code>), and render engines other than the default one,
+     * are not supported by batch runs, so in that case inputs are rendered
+     * one at a time.
+     * </p>
+     * 
+     * @param exports
+     *            the output to produce for each input
+     * @param monitor
+     *            a progress monitor to observe for cancellation, or
+     *            <code>null</code>
+     * @return the outcome for each input (an OK status or a warning meaning
+     *         the output was produced)
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static Map<File, IStatus> generateAll(Map<File, File> exports, String format, IProgressMonitor monitor) {
+        Map<File, IStatus> results = new LinkedHashMap<File, IStatus>();
+        List<File> batchable = new ArrayList<File>();
+        GraphVizSettings settings = GraphVizActivator.getInstance().getSettings();
+        boolean batching = format.indexOf(':') < 0
+                && ProcessRenderEngine.ENGINE_ID.equals(settings.getRenderEngineId()) && settings.getDotStatus().isOK();
+        for (Map.Entry<File, File> export : exports.entrySet()) {
+            File automaticOutput = getAutomaticOutput(export.getKey(), format);
+            // never clobber a file that just happens to have that name
+            if (batching
+                    && (!automaticOutput.exists() || automaticOutput.equals(export.getValue().getAbsoluteFile())))
+                batchable.add(export.getKey());
+        }
+        List<File> chunk = new ArrayList<File>();
+        int chunkLength = 0;
+        for (File input : batchable) {
+            int pathLength = input.getAbsolutePath().length() + 1;
+            if (!chunk.isEmpty()
+                    && (chunk.size() >= MAX_BATCH_SIZE || chunkLength + pathLength > MAX_BATCH_COMMAND_LENGTH)) {
+                generateChunk(chunk, exports, format, results, monitor);
+                chunk.clear();
+                chunkLength = 0;
+            }
+            chunk.add(input);
+            chunkLength += pathLength;
+        }
+        if (!chunk.isEmpty())
+            generateChunk(chunk, exports, format, results, monitor);
+        // whatever could not be handled in batch
+        for (Map.Entry<File, File> export : exports.entrySet()) {
+            if (results.containsKey(export.getKey()))
+                continue;
+            if (monitor != null && monitor.isCanceled())
+                throw new OperationCanceledException();
+            Metrics.counter("batch.singles").increment();
+            try {
+                generate(new DotFileReference(export.getKey(), export.getKey().lastModified()), format, 0, 0,
+                        new Path(export.getValue().getAbsolutePath()));
+                results.put(export.getKey(), Status.OK_STATUS);
+            } catch (CoreException e) {
+                results.put(export.getKey(), e.getStatus());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs dot once for the given inputs, adding the outcome for each input
+     * to the given results, except for those that need to be rendered on
+     * their own.
+     */
+    private static void generateChunk(List<File> inputs, Map<File, File> exports, String format,
+            Map<File, IStatus> results, IProgressMonitor monitor) {
+        Metrics.counter("batch.runs").increment();
+        Metrics.counter("batch.inputs").add(inputs.size());
+        List<String> options = buildOptions(format, 0, 0);
+        options.add("-O");
+        for (File input : inputs) {
+            options.add(input.getAbsolutePath());
+            // so whatever is found there afterwards was produced by this run
+            File automaticOutput = getAutomaticOutput(input, format);
+            if (!inputs.contains(automaticOutput))
+                automaticOutput.delete();
+        }
+        ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+        IStatus runStatus = runDot(GraphVizActivator.getInstance().getSettings(), DOT_TIME_LIMIT * inputs.size(),
+                monitor, null, System.out, errorOutput, toArray(options));
+        // dot names the input a message is about as it was given
+        Map<File, StringBuilder> messages = new HashMap<File, StringBuilder>();
+        StringBuilder unattributed = new StringBuilder();
+        for (String line : errorOutput.toString().split("\r?\n")) {
+            if (line.trim().isEmpty())
+                continue;
+            StringBuilder target = unattributed;
+            File input = findInput(line, inputs);
+            if (input != null) {
+                target = messages.get(input);
+                if (target == null)
+                    messages.put(input, target = new StringBuilder());
+            }
+            target.append(line).append('\n');
+        }
+        if (unattributed.length() > 0)
+            LogUtils.debug(GraphVizActivator.ID, "dot produced the following error output: \n" + unattributed);
+        for (File input : inputs) {
+            File output = exports.get(input);
+            File automaticOutput = getAutomaticOutput(input, format);
+            StringBuilder inputMessages = messages.get(input);
+            if (automaticOutput.isFile()) {
+                try {
+                    if (!automaticOutput.equals(output.getAbsoluteFile())) {
+                        output.delete();
+                        FileUtils.moveFile(automaticOutput, output);
+                    }
+                    results.put(input, inputMessages == null ? Status.OK_STATUS : new Status(IStatus.WARNING,
+                            GraphVizActivator.ID, inputMessages.toString().trim()));
+                } catch (IOException e) {
+                    results.put(input, new Status(IStatus.ERROR, GraphVizActivator.ID, "Could not write " + output, e));
+                }
+            } else if (inputMessages != null)
+                results.put(input, new Status(IStatus.ERROR, GraphVizActivator.ID, inputMessages.toString().trim()));
+            else if (runStatus.getSeverity() >= IStatus.ERROR)
+                // a time out, or dot could not even be run
+                results.put(input, runStatus);
+            // otherwise, it will be rendered on its own
+        }
+    }
+
+    /**
+     * Returns the input the given message from dot is about, or
+     * <code>null</code>. dot puts the input path, followed by a colon, either
+     * at the start of a message or after a space (as in
+     * <code>Error: /a/b.dot: syntax error in line 1</code>). As one input path
+     * may end another, the longest path found wins.
+     */
+    private static File findInput(String message, List<File> inputs) {
+        File found = null;
+        int foundLength = 0;
+        for (File input : inputs) {
+            String path = input.getAbsolutePath();
+            if (path.length() <= foundLength)
+                continue;
+            for (int at = message.indexOf(path + ':'); at >= 0; at = message.indexOf(path + ':', at + 1))
+                if (at == 0 || Character.isWhitespace(message.charAt(at - 1))) {
+                    found = input;
+                    foundLength = path.length();
+                    break;
+                }
+        }
+        return found;
+    }
+
+    /**
+     * Returns where dot's <code>-O</code> option makes the output for the
+     * given input go.
+     */
+    private static File getAutomaticOutput(File input, String format) {
+        return new File(input.getAbsolutePath() + '.' + format);
+    }
+
     /**
      * Higher-level API for launching a GraphViz transformation.
      * 
@@ -93,61 +297,322 @@ public class GraphViz {
      */
     public static byte[] load(final InputStream input, String format, int dimensionX, int dimensionY)
             throws CoreException {
+        return load(input, format, dimensionX, dimensionY, null);
+    }
+
+    /**
+     * Like {@link #load(InputStream, String, int, int)}, but giving up as soon
+     * as the given monitor is cancelled (killing dot if it is already
+     * running).
+     * 
+     * @param monitor
+     *            a progress monitor, or <code>null</code>
+     * @return the resulting image, never <code>null</code>
+     * @throws CoreException
+     *             if any error occurs
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static byte[] load(final InputStream input, String format, int dimensionX, int dimensionY,
+            IProgressMonitor monitor) throws CoreException {
+        return load(input, format, dimensionX, dimensionY, GraphVizActivator.getInstance().getSettings(), monitor);
+    }
+
+    /**
+     * Like {@link #load(InputStream, String, int, int, IProgressMonitor)},
+     * but rendering with the given settings instead of the current ones (see
+     * {@link GraphVizSettings#withOptions(String...)}).
+     * 
+     * @param monitor
+     *            a progress monitor, or <code>null</code>
+     * @return the resulting image, never <code>null</code>
+     * @throws CoreException
+     *             if any error occurs
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static byte[] load(final InputStream input, String format, int dimensionX, int dimensionY,
+            GraphVizSettings settings, IProgressMonitor monitor) throws CoreException {
         MultiStatus status = new MultiStatus(GraphVizActivator.ID, 0, "Errors occurred while running Graphviz", null);
-        File dotInputFile = null, dotOutputFile = null;
-        // we keep the input in memory so we can include it in error messages
-        ByteArrayOutputStream dotContents = new ByteArrayOutputStream();
         try {
-            // determine the temp input and output locations
-            dotInputFile = File.createTempFile(TMP_FILE_PREFIX, DOT_EXTENSION);
-            dotOutputFile = File.createTempFile(TMP_FILE_PREFIX, "." + format);
-            // we created the output file just so we would know an output
-            // location to pass to dot
-            dotOutputFile.delete();
-
-            // dump the contents from the input stream into the temporary file
-            // to be submitted to dot
-            byte[] contentsAsArray = null;
-            try (FileOutputStream tmpDotOutputStream = new FileOutputStream(dotInputFile)) {
-                IOUtils.copy(input, dotContents);
-                contentsAsArray = dotContents.toByteArray();
-                IOUtils.copy(new ByteArrayInputStream(contentsAsArray), tmpDotOutputStream);
-            }
-
-            IStatus result = runDot(format, dimensionX, dimensionY, dotInputFile, dotOutputFile);
-
-            status.add(result);
-            status.add(logInput(contentsAsArray));
-            if (dotOutputFile.isFile()) {
-                if (!result.isOK() && Platform.inDebugMode())
+            // we keep the input in memory so we can include it in error messages
+            DotInput dotInput = inMemory(IOUtils.toByteArray(input));
+            byte[] output = render(settings, dotInput, format, dimensionX, dimensionY, status, monitor);
+            boolean problemsFound = !status.isOK();
+            status.add(logInput(dotInput));
+            if (output != null) {
+                if (problemsFound && Platform.inDebugMode())
                     LogUtils.log(status);
-                return FileUtils.readFileToByteArray(dotOutputFile);
+                return output;
             }
         } catch (IOException e) {
             status.add(new Status(IStatus.ERROR, GraphVizActivator.ID, "", e));
         } finally {
-            dotInputFile.delete();
-            dotOutputFile.delete();
             IOUtils.closeQuietly(input);
         }
         throw new CoreException(status);
     }
 
+    /**
+     * Like {@link #load(InputStream, String, int, int, IProgressMonitor)},
+     * but letting dot read its input from the given file, so the contents
+     * are not copied around first. The file is only read by this plug-in if
+     * dot reports problems (to include it in the error messages) or if the
+     * render engine cannot read files by itself.
+     * 
+     * @param monitor
+     *            a progress monitor, or <code>null</code>
+     * @return the resulting image, never <code>null</code>
+     * @throws CoreException
+     *             if any error occurs
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static byte[] load(DotFileReference input, String format, int dimensionX, int dimensionY,
+            IProgressMonitor monitor) throws CoreException {
+        return load(input, format, dimensionX, dimensionY, GraphVizActivator.getInstance().getSettings(), monitor);
+    }
+
+    /**
+     * Like {@link #load(DotFileReference, String, int, int, IProgressMonitor)},
+     * but rendering with the given settings instead of the current ones (see
+     * {@link GraphVizSettings#withOptions(String...)}).
+     * 
+     * @param monitor
+     *            a progress monitor, or <code>null</code>
+     * @return the resulting image, never <code>null</code>
+     * @throws CoreException
+     *             if any error occurs
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static byte[] load(DotFileReference input, String format, int dimensionX, int dimensionY,
+            GraphVizSettings settings, IProgressMonitor monitor) throws CoreException {
+        MultiStatus status = new MultiStatus(GraphVizActivator.ID, 0, "Errors occurred while running Graphviz", null);
+        try {
+            DotInput dotInput = inFile(input);
+            byte[] output = render(settings, dotInput, format, dimensionX, dimensionY, status, monitor);
+            if (output != null && status.isOK())
+                return output;
+            status.add(logInput(dotInput));
+            if (output != null) {
+                if (Platform.inDebugMode())
+                    LogUtils.log(status);
+                return output;
+            }
+        } catch (IOException e) {
+            status.add(new Status(IStatus.ERROR, GraphVizActivator.ID, "", e));
+        }
+        throw new CoreException(status);
+    }
+
+    /**
+     * Produces dot's output for the given contents, either from the render
+     * cache or by running dot. Any problems reported by dot are added to the
+     * given status. How the graph is laid out depends on its size (see
+     * {@link LayoutPolicy}).
+     * 
+     * @param monitor
+     *            a progress monitor to observe for cancellation, or
+     *            <code>null</code>
+     * @return the output, or <code>null</code> if dot produced nothing
+     */
+    private static byte[] render(GraphVizSettings settings, DotInput dotInput, String format, int dimensionX,
+            int dimensionY, MultiStatus status, IProgressMonitor monitor) throws IOException {
+        RenderOutput output = new RenderOutput(null, Long.MAX_VALUE);
+        render(settings, dotInput, format, dimensionX, dimensionY, status, monitor, output);
+        return output.getSize() == 0 ? null : output.getBytes();
+    }
+
+    /**
+     * Like {@link #render(GraphVizSettings, DotInput, String, int, int, MultiStatus, IProgressMonitor)},
+     * but writing the output to the given stream.
+     */
+    private static void render(GraphVizSettings settings, DotInput dotInput, String format, int dimensionX,
+            int dimensionY, MultiStatus status, IProgressMonitor monitor, RenderOutput output) throws IOException {
+        RenderDiagnostics.Record record = null;
+        if (RenderDiagnostics.isEnabled())
+            CURRENT_RECORD.set(record = new RenderDiagnostics.Record(
+                    dotInput.getContents(RenderDiagnostics.MAX_TEXT_LENGTH), dotInput.getLength(), format,
+                    dimensionX, dimensionY));
+        Metrics.counter("render.requests").increment();
+        Metrics.counter("render.bytesIn").add(dotInput.getLength());
+        long start = System.nanoTime();
+        boolean completed = false;
+        try {
+            doRender(settings, dotInput, format, dimensionX, dimensionY, status, monitor, output);
+            completed = true;
+        } catch (OperationCanceledException e) {
+            Metrics.counter("render.cancellations").increment();
+            throw e;
+        } finally {
+            Metrics.timer("render.total").recordSince(start);
+            Metrics.counter("render.bytesOut").add(output.getSize());
+            if (completed && (output.getSize() == 0 || status.getSeverity() >= IStatus.ERROR))
+                Metrics.counter("render.failures").increment();
+            if (record != null) {
+                CURRENT_RECORD.remove();
+                record.finished((int) Math.min(Integer.MAX_VALUE, output.getSize()),
+                        completed ? status : null);
+                GraphVizActivator.getInstance().getRenderDiagnostics().add(record);
+                LogUtils.debug(GraphVizActivator.ID, record.toString());
+            }
+        }
+    }
+
+    private static void doRender(GraphVizSettings settings, DotInput dotInput, String format, int dimensionX,
+            int dimensionY, MultiStatus status, IProgressMonitor monitor, RenderOutput output) throws IOException {
+        RenderCache cache = GraphVizActivator.getInstance().getRenderCache();
+        String cacheKey = null;
+        IRenderEngine engine = settings.getRenderEngine();
+        if (cache != null && engine.getStatus(settings).isOK()) {
+            // the layout policy only depends on the contents and the settings
+            // (as they are before applying it), so it is not scanned for here
+            cacheKey = dotInput.computeKey(format, Integer.toString(dimensionX),
+                    Integer.toString(dimensionY), settings.getRenderEngineId(), engine.getVersion(settings),
+                    settings.getCommandLineExtension(), LayoutPolicy.getConfiguration());
+            byte[] cached = cache.get(cacheKey);
+            if (cached != null) {
+                Metrics.counter("render.cacheHits").increment();
+                RenderDiagnostics.Record record = CURRENT_RECORD.get();
+                if (record != null)
+                    record.cacheHit();
+                output.write(cached);
+                return;
+            }
+        }
+        settings = applyLayoutPolicy(settings, dotInput);
+        IStatus result;
+        if (ProcessRenderEngine.ENGINE_ID.equals(settings.getRenderEngineId()))
+            result = dotInput.render(engine, settings, format, dimensionX, dimensionY, output, monitor);
+        else {
+            // held back, as dot is run instead if the engine fails
+            ByteArrayOutputStream engineOutput = new ByteArrayOutputStream();
+            result = dotInput.render(engine, settings, format, dimensionX, dimensionY, engineOutput, monitor);
+            if (engineOutput.size() == 0 || result.getSeverity() >= IStatus.ERROR) {
+                // running dot remains the reference
+                Metrics.counter("render.engineFallbacks").increment();
+                status.add(new Status(IStatus.INFO, GraphVizActivator.ID, "Render engine "
+                        + settings.getRenderEngineId() + " failed, running dot instead. " + result.getMessage(),
+                        result.getException()));
+                engine = GraphVizActivator.getInstance().getRenderEngineRegistry().getDefaultEngine();
+                result = dotInput.render(engine, settings, format, dimensionX, dimensionY, output, monitor);
+                // not what the cache key stands for
+                cacheKey = null;
+            } else
+                engineOutput.writeTo(output);
+        }
+        status.add(result);
+        if (output.getSize() == 0)
+            return;
+        // problems would not be reported again if we cached them, and the
+        // key would not match the output if the input changed in the meantime
+        if (cacheKey != null && result.isOK() && dotInput.isUnchanged()) {
+            byte[] bytes = output.getBytes();
+            // null if too large to be worth caching
+            if (bytes != null)
+                cache.put(cacheKey, bytes);
+        }
+    }
+
+    /**
+     * Returns the given settings adjusted for laying out the given graph (see
+     * {@link LayoutPolicy}).
+     */
+    private static GraphVizSettings applyLayoutPolicy(GraphVizSettings settings, DotInput dotInput)
+            throws IOException {
+        if (!LayoutPolicy.isEnabled())
+            return settings;
+        long scanStart = System.nanoTime();
+        LayoutPolicy policy = LayoutPolicy.choose(dotInput.estimateSize(), settings);
+        Metrics.timer("render.scan").recordSince(scanStart);
+        Metrics.counter("layout." + policy.getName()).increment();
+        RenderDiagnostics.Record record = CURRENT_RECORD.get();
+        if (record != null)
+            record.layoutChosen(policy.toString());
+        return policy.apply(settings);
+    }
+
+    /**
+     * Returns the record for the render in progress in the current thread,
+     * or <code>null</code> if diagnostics are disabled.
+     */
+    static RenderDiagnostics.Record getCurrentRecord() {
+        return CURRENT_RECORD.get();
+    }
+
+    /**
+     * Returns the version information reported by the given dot executable.
+     * 
+     * @see GraphVizSettings#getDotVersion()
+     */
+    static String readDotVersion(IPath dotLocation) {
+        File dotFile = dotLocation.toFile();
+        String version;
+        ByteArrayOutputStream versionOutput = new ByteArrayOutputStream();
+        try {
+            ProcessController controller = new ProcessController(10000, new String[] { dotLocation.toOSString(),
+                    "-V" }, null, dotFile.getParentFile());
+            // dot reports its version on stderr
+            controller.forwardErrorOutput(versionOutput);
+            controller.forwardOutput(versionOutput);
+            controller.execute();
+            version = versionOutput.toString().trim();
+        } catch (TimeOutException e) {
+            version = "";
+        } catch (InterruptedException e) {
+            version = "";
+        } catch (IOException e) {
+            version = "";
+        }
+        return version;
+    }
+
     public static IStatus runDot(String format, int dimensionX, int dimensionY, File dotInput, File dotOutput) {
+        return runDot(toArray(buildFileOptions(format, dimensionX, dimensionY, dotInput, dotOutput)));
+    }
+
+    static List<String> buildFileOptions(String format, int dimensionX, int dimensionY, File dotInput,
+            File dotOutput) {
+        List<String> cmd = buildOptions(format, dimensionX, dimensionY);
+        cmd.add(0, "-o" + dotOutput.getAbsolutePath());
+        cmd.add(dotInput.getAbsolutePath());
+        return cmd;
+    }
+
+    static String[] toArray(List<String> options) {
+        return options.toArray(new String[options.size()]);
+    }
+
+    /**
+     * Runs dot feeding the given contents through its standard input, and
+     * writing whatever it produces on its standard output to the given stream.
+     */
+    public static IStatus runDot(String format, int dimensionX, int dimensionY, byte[] dotInput,
+            OutputStream dotOutput) {
+        return runDot(new ByteArrayInputStream(dotInput), dotOutput, toArray(buildOptions(format, dimensionX,
+                dimensionY)));
+    }
+
+    static List<String> buildOptions(String format, int dimensionX, int dimensionY) {
         // build the command line
         double dpi = 96;
         double widthInInches = dimensionX / dpi;
         double heightInInches = dimensionY / dpi;
         List<String> cmd = new ArrayList<String>();
-        cmd.add("-o" + dotOutput.getAbsolutePath());
         cmd.add("-T" + format);
         if (widthInInches > 0 && heightInInches > 0)
             cmd.add("-Gsize=" + widthInInches + ',' + heightInInches);
-        cmd.add(dotInput.getAbsolutePath());
-        return runDot(cmd.toArray(new String[cmd.size()]));
+        return cmd;
     }
 
-    private static IStatus logInput(byte[] dotContents) {
+    private static IStatus logInput(DotInput input) {
+        byte[] dotContents;
+        try {
+            dotContents = input.getContents(MAX_DOT_LENGTH_TO_LOG);
+        } catch (IOException e) {
+            return new Status(IStatus.INFO, GraphVizActivator.ID, "dot input could not be read", e);
+        }
         String dotInput = new String(dotContents, 0, Math.min(dotContents.length, MAX_DOT_LENGTH_TO_LOG), StandardCharsets.UTF_8);
         return new Status(IStatus.INFO, GraphVizActivator.ID, "dot input was:\n" + dotInput, null);
     }
@@ -163,40 +628,100 @@ public class GraphViz {
      * @throws IOException
      */
     public static IStatus runDot(String... options) {
-        IPath dotFullPath = GraphVizActivator.getInstance().getDotLocation();
-        if (dotFullPath == null || dotFullPath.isEmpty())
-            return new Status(
-                    IStatus.ERROR,
-                    GraphVizActivator.ID,
-                    "dot.exe/dot not found in PATH. Please install it from graphviz.org, update the PATH or specify the absolute path in the preferences.");
-        if (!dotFullPath.toFile().isFile())
-            return new Status(IStatus.ERROR, GraphVizActivator.ID, "Could not find Graphviz dot at \"" + dotFullPath
-                    + "\"");
+        return runDot(null, System.out, options);
+    }
+
+    /**
+     * Bare bones API for launching dot with its standard input and output
+     * connected to the given streams.
+     * 
+     * @param input
+     *            the contents to feed dot with, or <code>null</code>
+     * @param output
+     *            where to send dot's standard output to
+     * @param options
+     *            command line options for dot
+     * @see #runDot(String...)
+     */
+    public static IStatus runDot(InputStream input, OutputStream output, String... options) {
+        return runDot(null, input, output, options);
+    }
+
+    /**
+     * Like {@link #runDot(InputStream, OutputStream, String...)}, but killing
+     * dot as soon as the given monitor is cancelled.
+     * 
+     * @param monitor
+     *            a progress monitor, or <code>null</code>
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    public static IStatus runDot(IProgressMonitor monitor, InputStream input, OutputStream output, String... options) {
+        return runDot(GraphVizActivator.getInstance().getSettings(), monitor, input, output, options);
+    }
+
+    /**
+     * Like {@link #runDot(IProgressMonitor, InputStream, OutputStream, String...)},
+     * but running dot as configured in the given settings instead of the
+     * current ones.
+     */
+    public static IStatus runDot(GraphVizSettings settings, IProgressMonitor monitor, InputStream input,
+            OutputStream output, String... options) {
+        return runDot(settings, DOT_TIME_LIMIT, monitor, input, output, new ByteArrayOutputStream(), options);
+    }
+
+    /**
+     * Runs dot, collecting its error output in the given stream.
+     * 
+     * @param timeLimit
+     *            how long dot may run for, in milliseconds
+     */
+    private static IStatus runDot(GraphVizSettings settings, long timeLimit, IProgressMonitor monitor,
+            InputStream input, OutputStream output, ByteArrayOutputStream errorOutput, String... options) {
+        if (!settings.getDotStatus().isOK())
+            return settings.getDotStatus();
+        IPath dotFullPath = settings.getDotLocation();
         List<String> cmd = new ArrayList<String>();
         cmd.add(dotFullPath.toOSString());
         // insert user custom options
-        String commandLineExtension = GraphVizActivator.getInstance().getCommandLineExtension();
-        if (commandLineExtension != null) {
-            String[] tokens = commandLineExtension.split(" ");
-            cmd.addAll(Arrays.asList(tokens));
-        }
+        cmd.addAll(settings.getCommandLineOptions());
         cmd.addAll(Arrays.asList(options));
 
-        ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
         try {
-            final ProcessController controller = new ProcessController(90000, cmd.toArray(new String[cmd.size()]),
+            final ProcessController controller = new ProcessController(timeLimit, cmd.toArray(new String[cmd.size()]),
                     null, dotFullPath.removeLastSegments(1).toFile());
             controller.forwardErrorOutput(errorOutput);
-            controller.forwardOutput(System.out);
-            controller.forwardInput(System.in);
-            int exitCode = controller.execute();
-            if (exitCode != 0)
+            controller.forwardOutput(output);
+            if (input != null)
+                controller.forwardInput(input);
+            controller.setProgressMonitor(monitor);
+            // too many concurrent dot processes would just compete for the CPU
+            RenderScheduler scheduler = GraphVizActivator.getInstance().getRenderScheduler();
+            long requested = System.nanoTime();
+            scheduler.acquire(monitor);
+            long started = System.nanoTime();
+            Metrics.timer("dot.wait").record(started - requested);
+            Integer exitCode = null;
+            try {
+                exitCode = controller.execute();
+            } finally {
+                scheduler.release();
+                Metrics.timer("dot.run").recordSince(started);
+                RenderDiagnostics.Record record = CURRENT_RECORD.get();
+                if (record != null)
+                    record.ran(exitCode, errorOutput.toByteArray(), errorOutput.size(), started - requested,
+                            System.nanoTime() - started);
+            }
+            if (exitCode != 0) {
+                Metrics.counter("dot.errors").increment();
                 return new Status(IStatus.WARNING, GraphVizActivator.ID, "Graphviz exit code: " + exitCode + "."
                         + createContentMessage(errorOutput));
+            }
             if (errorOutput.size() > 0)
                 return new Status(IStatus.WARNING, GraphVizActivator.ID, createContentMessage(errorOutput));
             return Status.OK_STATUS;
         } catch (TimeOutException e) {
+            Metrics.counter("dot.timeouts").increment();
             return new Status(IStatus.ERROR, GraphVizActivator.ID, "Graphviz process did not finish in a timely way."
                     + createContentMessage(errorOutput));
         } catch (InterruptedException e) {
@@ -213,4 +738,206 @@ public class GraphViz {
             return "";
         return " dot produced the following error output: \n" + errorOutput;
     }
+
+    /**
+     * Where dot's output goes: to a file (only created once there is some
+     * output), and to memory, up to the given size.
+     */
+    private static class RenderOutput extends OutputStream {
+        private final File file;
+        private final long maxKept;
+        private OutputStream fileOutput;
+        private IOException failure;
+        private ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private byte[] bytes;
+        private long size;
+
+        RenderOutput(File file, long maxKept) {
+            this.file = file;
+            this.maxKept = maxKept;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            if (file != null) {
+                if (failure != null)
+                    throw failure;
+                try {
+                    if (fileOutput == null)
+                        fileOutput = new BufferedOutputStream(FileUtils.openOutputStream(file));
+                    fileOutput.write(b, off, len);
+                } catch (IOException e) {
+                    // dot's output is forwarded from another thread, which
+                    // cannot report it
+                    failure = e;
+                    throw e;
+                }
+            }
+            size += len;
+            bytes = null;
+            if (kept != null) {
+                if (kept.size() + (long) len > maxKept)
+                    kept = null;
+                else
+                    kept.write(b, off, len);
+            }
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the output, or <code>null</code> if it was too large to be
+         * kept.
+         */
+        synchronized byte[] getBytes() {
+            if (bytes == null && kept != null)
+                bytes = kept.toByteArray();
+            return bytes;
+        }
+
+        /**
+         * Closes the file, throwing any failure to write it (in which case it
+         * is deleted, as it would be incomplete).
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (fileOutput != null)
+                try {
+                    fileOutput.close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                } finally {
+                    fileOutput = null;
+                }
+            if (failure != null) {
+                file.delete();
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * dot's input, either kept in memory or in a file dot can read by itself.
+     */
+    private static abstract class DotInput {
+        abstract int getLength();
+
+        /**
+         * Returns the contents, or at least as much of them as the given
+         * length.
+         */
+        abstract byte[] getContents(int maxLength) throws IOException;
+
+        /**
+         * @see RenderCache#computeKey(byte[], String...)
+         */
+        abstract String computeKey(String... discriminators) throws IOException;
+
+        abstract DotGraphSize estimateSize() throws IOException;
+
+        /**
+         * Returns whether the contents are still those the key was computed
+         * for.
+         */
+        boolean isUnchanged() {
+            return true;
+        }
+
+        abstract IStatus render(IRenderEngine engine, GraphVizSettings settings, String format, int dimensionX,
+                int dimensionY, OutputStream output, IProgressMonitor monitor) throws IOException;
+    }
+
+    private static DotInput inMemory(final byte[] dotContents) {
+        return new DotInput() {
+            @Override
+            int getLength() {
+                return dotContents.length;
+            }
+
+            @Override
+            byte[] getContents(int maxLength) {
+                return dotContents;
+            }
+
+            @Override
+            String computeKey(String... discriminators) {
+                return RenderCache.computeKey(dotContents, discriminators);
+            }
+
+            @Override
+            DotGraphSize estimateSize() {
+                return DotGraphSize.scan(dotContents);
+            }
+
+            @Override
+            IStatus render(IRenderEngine engine, GraphVizSettings settings, String format, int dimensionX,
+                    int dimensionY, OutputStream output, IProgressMonitor monitor) throws IOException {
+                return engine.render(settings, dotContents, format, dimensionX, dimensionY, output, monitor);
+            }
+        };
+    }
+
+    private static DotInput inFile(final DotFileReference reference) {
+        final File dotFile = reference.getLocation();
+        return new DotInput() {
+            @Override
+            int getLength() {
+                return (int) Math.min(Integer.MAX_VALUE, dotFile.length());
+            }
+
+            @Override
+            byte[] getContents(int maxLength) throws IOException {
+                InputStream contents = new FileInputStream(dotFile);
+                try {
+                    byte[] buffer = new byte[Math.min(maxLength, getLength())];
+                    int total = 0;
+                    int read;
+                    while (total < buffer.length && (read = contents.read(buffer, total, buffer.length - total)) >= 0)
+                        total += read;
+                    return total == buffer.length ? buffer : Arrays.copyOf(buffer, total);
+                } finally {
+                    contents.close();
+                }
+            }
+
+            @Override
+            String computeKey(String... discriminators) throws IOException {
+                String contentsKey = reference.getContentsKey();
+                if (contentsKey != null)
+                    return RenderCache.computeKey(contentsKey, discriminators);
+                return RenderCache.computeKey(dotFile, discriminators);
+            }
+
+            @Override
+            boolean isUnchanged() {
+                return reference.isUnchanged();
+            }
+
+            @Override
+            DotGraphSize estimateSize() throws IOException {
+                InputStream contents = new FileInputStream(dotFile);
+                try {
+                    return DotGraphSize.scan(contents);
+                } finally {
+                    contents.close();
+                }
+            }
+
+            @Override
+            IStatus render(IRenderEngine engine, GraphVizSettings settings, String format, int dimensionX,
+                    int dimensionY, OutputStream output, IProgressMonitor monitor) throws IOException {
+                return engine.render(settings, dotFile, format, dimensionX, dimensionY, output, monitor);
+            }
+        };
+    }
 }
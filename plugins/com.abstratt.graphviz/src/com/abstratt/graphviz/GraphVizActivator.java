@@ -19,13 +19,17 @@ import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.IPreferenceChangeListener;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.PreferenceChangeEvent;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.prefs.BackingStoreException;
 import org.osgi.service.prefs.Preferences;
 
+import com.abstratt.pluginutils.ConfigUtils;
 import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 public class GraphVizActivator implements BundleActivator {
 
@@ -60,6 +64,19 @@ public class GraphVizActivator implements BundleActivator {
 
     public static final String COMMAND_LINE = "commandLineExtension";
 
+    public static final String MAX_CONCURRENT_RENDERS = "maxConcurrentRenders";
+
+    public static final String RENDER_ENGINE = "renderEngine";
+
+    public static final String VECTOR_RENDERING = "vectorRendering";
+
+    public static final String PROGRESSIVE_RENDERING = "progressiveRendering";
+
+    /**
+     * The JMX object name rendering metrics are published under.
+     */
+    public static final String METRICS_OBJECT_NAME = "com.abstratt.graphviz:type=Metrics";
+
     public static String ID = GraphVizActivator.class.getPackage().getName();
 
     private static GraphVizActivator instance;
@@ -96,6 +113,30 @@ public class GraphVizActivator implements BundleActivator {
      */
     private String autodetectedDotLocation;
 
+    private RenderCache renderCache;
+
+    private RenderScheduler renderScheduler;
+
+    private RenderDiagnostics renderDiagnostics;
+
+    private RenderEngineRegistry renderEngineRegistry;
+
+    private DotWorkerPool dotWorkerPool;
+
+    /** Lazily (re)created, discarded whenever preferences change. */
+    private volatile GraphVizSettings settings;
+    /** Incremented whenever settings are discarded. */
+    private int settingsGeneration;
+
+    private final IPreferenceChangeListener preferenceListener = new IPreferenceChangeListener() {
+        public void preferenceChange(PreferenceChangeEvent event) {
+            preferenceChanged(event.getKey());
+        }
+    };
+
+    /** Width and height images were last rendered at for display. */
+    private volatile int[] displaySize = { 0, 0 };
+
     /**
      * The path the bundled Graphviz install was extracted to (null if not
      * found/looked up).
@@ -114,6 +155,7 @@ public class GraphVizActivator implements BundleActivator {
      *         dot without restarting Eclipse).
      */
     public String autodetectDots() {
+        discardSettings();
         autodetectedDotLocation = null;
         String paths = System.getenv("PATH");
         for (String path : paths.split(File.pathSeparator)) {
@@ -122,6 +164,7 @@ public class GraphVizActivator implements BundleActivator {
             if (matchingFiles != null && matchingFiles.length > 0) {
                 File found = matchingFiles[0];
                 autodetectedDotLocation = found.getAbsolutePath();
+                discardSettings();
                 break;
             }
         }
@@ -185,11 +228,115 @@ public class GraphVizActivator implements BundleActivator {
         setPreference(COMMAND_LINE, commandLineExtension);
     }
 
+    /**
+     * Returns the maximum number of dot processes that may run at the same
+     * time. Defaults to the number of available processors.
+     */
+    public int getMaxConcurrentRenders() {
+        String value = getPreference(MAX_CONCURRENT_RENDERS);
+        if (value != null)
+            try {
+                return Math.max(1, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        return RenderScheduler.getDefaultLimit();
+    }
+
+    public void setMaxConcurrentRenders(int maxConcurrentRenders) {
+        // the render scheduler is updated by the preference listener
+        setPreference(MAX_CONCURRENT_RENDERS, Integer.toString(maxConcurrentRenders));
+    }
+
+    /**
+     * Returns the id of the render engine chosen by the user. Defaults to
+     * running dot as an external process.
+     * 
+     * @see RenderEngineRegistry
+     */
+    public String getRenderEngine() {
+        String value = getPreference(RENDER_ENGINE);
+        return value == null || value.isEmpty() ? ProcessRenderEngine.ENGINE_ID : value;
+    }
+
+    public void setRenderEngine(String renderEngineId) {
+        setPreference(RENDER_ENGINE, renderEngineId);
+    }
+
+    /**
+     * Returns whether viewers should lay graphs out once and draw them
+     * themselves (from dot's xdot output), instead of having dot produce an
+     * image for every size shown. Off by default. Renders should rather use
+     * {@link #getSettings()}.
+     */
+    public boolean isVectorRendering() {
+        return Boolean.parseBoolean(getPreference(VECTOR_RENDERING));
+    }
+
+    public void setVectorRendering(boolean vectorRendering) {
+        setPreference(VECTOR_RENDERING, Boolean.toString(vectorRendering));
+    }
+
+    /**
+     * Returns whether viewers should show a quick, rougher rendering of
+     * large graphs while the actual one is produced. On by default. Renders
+     * should rather use {@link #getSettings()}.
+     */
+    public boolean isProgressiveRendering() {
+        String value = getPreference(PROGRESSIVE_RENDERING);
+        return value == null || Boolean.parseBoolean(value);
+    }
+
+    public void setProgressiveRendering(boolean progressiveRendering) {
+        setPreference(PROGRESSIVE_RENDERING, Boolean.toString(progressiveRendering));
+    }
+
+    public synchronized RenderEngineRegistry getRenderEngineRegistry() {
+        if (renderEngineRegistry == null)
+            renderEngineRegistry = new RenderEngineRegistry();
+        return renderEngineRegistry;
+    }
+
+    /**
+     * Returns the current settings rendering depends on. Unlike the
+     * individual preference getters, this is cheap enough to be called on
+     * every render.
+     */
+    public GraphVizSettings getSettings() {
+        GraphVizSettings current = settings;
+        if (current != null)
+            return current;
+        int generation;
+        synchronized (this) {
+            generation = settingsGeneration;
+        }
+        current = new GraphVizSettings(getDotLocation(), getCommandLineExtension(), getRenderEngineRegistry(),
+                getRenderEngine(), isVectorRendering(), isProgressiveRendering());
+        synchronized (this) {
+            // don't keep a snapshot that may predate a concurrent change
+            if (generation == settingsGeneration)
+                settings = current;
+        }
+        return current;
+    }
+
+    private synchronized void discardSettings() {
+        settings = null;
+        settingsGeneration++;
+    }
+
     /** Returns the preference with the given name */
     public String getPreference(String preference_name) {
-        Preferences node = Platform.getPreferencesService().getRootNode().node(InstanceScope.SCOPE)
+        return getPreferenceNode().get(preference_name, null);
+    }
+
+    /**
+     * Returns the node this plug-in's preferences are kept in (the instance
+     * scope node, by default).
+     */
+    protected IEclipsePreferences getPreferenceNode() {
+        return (IEclipsePreferences) Platform.getPreferencesService().getRootNode().node(InstanceScope.SCOPE)
                 .node(GraphVizActivator.ID);
-        return node.get(preference_name, null);
     }
 
     public void setDotSearchMethod(DotMethod dotMethod) {
@@ -202,10 +349,8 @@ public class GraphVizActivator implements BundleActivator {
 
     /** Sets the given preference to the given value */
     public void setPreference(String preferenceName, String value) {
-        IEclipsePreferences root = Platform.getPreferencesService().getRootNode();
-        Preferences node = root.node(InstanceScope.SCOPE).node(GraphVizActivator.ID);
+        Preferences node = getPreferenceNode();
         try {
-            node.sync();
             node.put(preferenceName, value);
             node.flush();
         } catch (BackingStoreException e) {
@@ -213,7 +358,80 @@ public class GraphVizActivator implements BundleActivator {
         }
     }
 
+    private void preferenceChanged(String preferenceName) {
+        discardSettings();
+        if (MAX_CONCURRENT_RENDERS.equals(preferenceName) && renderScheduler != null)
+            renderScheduler.setLimit(getMaxConcurrentRenders());
+    }
+
+    /**
+     * Returns the cache for dot outputs, or <code>null</code> if caching is
+     * disabled.
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    public RenderScheduler getRenderScheduler() {
+        return renderScheduler;
+    }
+
+    /**
+     * Returns the pool of long-lived dot processes, or <code>null</code> if
+     * they are disabled.
+     */
+    public DotWorkerPool getDotWorkerPool() {
+        return dotWorkerPool;
+    }
+
+    /**
+     * Returns the records of recent renders. Only populated if diagnostics
+     * are enabled.
+     * 
+     * @see RenderDiagnostics#isEnabled()
+     */
+    public RenderDiagnostics getRenderDiagnostics() {
+        return renderDiagnostics;
+    }
+
+    /**
+     * Records the dimensions an image was just rendered at for display, so
+     * pre-rendering can produce images that are likely to be asked for next.
+     * 
+     * @see PreRenderBuilder
+     */
+    public void recordDisplaySize(int dimensionX, int dimensionY) {
+        displaySize = new int[] { dimensionX, dimensionY };
+    }
+
+    /**
+     * Returns the width and height images were last rendered at for display
+     * (zeroes meaning dot's own choice).
+     */
+    public int[] getDisplaySize() {
+        return displaySize.clone();
+    }
+
+    /**
+     * Returns the directory the render cache keeps outputs in, or
+     * <code>null</code> to keep them in memory only.
+     */
+    protected File getRenderCacheLocation(BundleContext context) {
+        return Platform.getStateLocation(context.getBundle()).append("renderCache").toFile();
+    }
+
     public void start(BundleContext context) throws Exception {
+        getPreferenceNode().addPreferenceChangeListener(preferenceListener);
+        renderScheduler = new RenderScheduler(getMaxConcurrentRenders());
+        if (DotWorkerPool.isEnabled())
+            dotWorkerPool = new DotWorkerPool();
+        Metrics.register(METRICS_OBJECT_NAME);
+        renderDiagnostics = new RenderDiagnostics((int) RenderCache.getLimit(RenderDiagnostics.CAPACITY,
+                RenderDiagnostics.DEFAULT_CAPACITY));
+        if (Boolean.parseBoolean(ConfigUtils.get(RenderCache.ENABLED, Boolean.TRUE.toString())))
+            renderCache = new RenderCache(getRenderCacheLocation(context), RenderCache.getLimit(
+                    RenderCache.MEMORY_LIMIT, RenderCache.DEFAULT_MEMORY_LIMIT), RenderCache.getLimit(
+                    RenderCache.DISK_LIMIT, RenderCache.DEFAULT_DISK_LIMIT));
         // try to find any installed copies of dot
         autodetectDots();
         if (autodetectedDotLocation != null) {
@@ -227,6 +445,13 @@ public class GraphVizActivator implements BundleActivator {
     }
 
     public void stop(BundleContext context) throws Exception {
-        // nothing to do
+        getPreferenceNode().removePreferenceChangeListener(preferenceListener);
+        if (renderCache != null)
+            LogUtils.debug(ID, renderCache.toString());
+        renderCache = null;
+        if (dotWorkerPool != null)
+            dotWorkerPool.shutdown();
+        dotWorkerPool = null;
+        Metrics.unregister(METRICS_OBJECT_NAME);
     }
 }
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+import com.abstratt.graphviz.RenderEngineRegistry.RenderEngineDescriptor;
+import com.abstratt.pluginutils.LogUtils;
+
+/**
+ * A snapshot of the settings rendering depends on, resolved and validated
+ * once so renders don't need to go to the preference store (or check the
+ * file system) every time. A new snapshot is taken whenever preferences
+ * change.
+ *
+ * @see GraphVizActivator#getSettings()
+ */
+public class GraphVizSettings {
+    private final IPath dotLocation;
+    private final IStatus dotStatus;
+    private final String commandLineExtension;
+    private final List<String> commandLineOptions;
+    private final String renderEngineId;
+    private final IRenderEngine renderEngine;
+    private final boolean vectorRendering;
+    private final boolean progressiveRendering;
+    /** Obtained on first use, as it requires running dot. */
+    private volatile String dotVersion;
+
+    GraphVizSettings(IPath dotLocation, String commandLineExtension, RenderEngineRegistry renderEngines,
+            String selectedRenderEngine, boolean vectorRendering, boolean progressiveRendering) {
+        this.dotLocation = dotLocation;
+        this.vectorRendering = vectorRendering;
+        this.progressiveRendering = progressiveRendering;
+        this.commandLineExtension = commandLineExtension;
+        this.commandLineOptions = Collections.unmodifiableList(tokenize(commandLineExtension));
+        if (dotLocation == null || dotLocation.isEmpty())
+            dotStatus = new Status(
+                    IStatus.ERROR,
+                    GraphVizActivator.ID,
+                    "dot.exe/dot not found in PATH. Please install it from graphviz.org, update the PATH or specify the absolute path in the preferences.");
+        else if (!dotLocation.toFile().isFile())
+            dotStatus = new Status(IStatus.ERROR, GraphVizActivator.ID, "Could not find Graphviz dot at \""
+                    + dotLocation + "\"");
+        else
+            dotStatus = Status.OK_STATUS;
+        RenderEngineDescriptor selected = selectedRenderEngine == null ? null : renderEngines
+                .find(selectedRenderEngine);
+        IRenderEngine engine = selected == null ? null : selected.getEngine();
+        if (engine != null && !ProcessRenderEngine.ENGINE_ID.equals(selected.getId())) {
+            IStatus engineStatus = engine.getStatus(this);
+            if (!engineStatus.isOK()) {
+                LogUtils.logWarning(GraphVizActivator.ID, "Render engine " + selected.getId()
+                        + " is not available, running dot instead. " + engineStatus.getMessage(),
+                        engineStatus.getException());
+                engine = null;
+            }
+        }
+        if (engine == null) {
+            this.renderEngineId = ProcessRenderEngine.ENGINE_ID;
+            this.renderEngine = renderEngines.getDefaultEngine();
+        } else {
+            this.renderEngineId = selected.getId();
+            this.renderEngine = engine;
+        }
+    }
+
+    private GraphVizSettings(GraphVizSettings base, List<String> extraOptions) {
+        this.dotLocation = base.dotLocation;
+        this.dotStatus = base.dotStatus;
+        List<String> options = new ArrayList<String>(base.commandLineOptions);
+        options.addAll(extraOptions);
+        this.commandLineOptions = Collections.unmodifiableList(options);
+        StringBuilder extension = new StringBuilder(base.commandLineExtension == null ? ""
+                : base.commandLineExtension);
+        for (String option : extraOptions)
+            extension.append(' ').append(option);
+        this.commandLineExtension = extension.toString().trim();
+        this.renderEngineId = base.renderEngineId;
+        this.renderEngine = base.renderEngine;
+        this.vectorRendering = base.vectorRendering;
+        this.progressiveRendering = base.progressiveRendering;
+        this.dotVersion = base.dotVersion;
+    }
+
+    /**
+     * Returns a copy of these settings with the given dot options added to
+     * the user-defined ones, for renders that need to tweak the layout (such
+     * as quick previews). Outputs produced with different options are never
+     * confused in the render cache.
+     */
+    public GraphVizSettings withOptions(String... options) {
+        return new GraphVizSettings(this, Arrays.asList(options));
+    }
+
+    /**
+     * Returns the dot executable to use, or <code>null</code> if none could
+     * be found. Note the executable may not exist, see
+     * {@link #getDotStatus()}.
+     */
+    public IPath getDotLocation() {
+        return dotLocation;
+    }
+
+    /**
+     * Returns an OK status if the dot executable was found, or an error
+     * status explaining why it could not.
+     */
+    public IStatus getDotStatus() {
+        return dotStatus;
+    }
+
+    /**
+     * Returns the engine renders should go through: the one chosen in the
+     * preferences if it is available, otherwise the one running dot as a
+     * process.
+     */
+    public IRenderEngine getRenderEngine() {
+        return renderEngine;
+    }
+
+    /**
+     * Returns the id of the engine returned by {@link #getRenderEngine()}.
+     */
+    public String getRenderEngineId() {
+        return renderEngineId;
+    }
+
+    /**
+     * Returns an OK status if rendering is possible, or an error status
+     * explaining why it is not.
+     */
+    public IStatus getRenderStatus() {
+        return renderEngine.getStatus(this);
+    }
+
+    /**
+     * Returns the user-defined command line options, as entered.
+     */
+    public String getCommandLineExtension() {
+        return commandLineExtension;
+    }
+
+    /**
+     * Returns the user-defined command line options, one per element.
+     */
+    public List<String> getCommandLineOptions() {
+        return commandLineOptions;
+    }
+
+    /**
+     * Returns whether viewers should lay graphs out once and draw them
+     * themselves (see {@link GraphVizActivator#isVectorRendering()}).
+     */
+    public boolean isVectorRendering() {
+        return vectorRendering;
+    }
+
+    /**
+     * Returns whether viewers should show a quick preview of large graphs
+     * first (see {@link GraphVizActivator#isProgressiveRendering()}).
+     */
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
+
+    /**
+     * Returns the version information reported by the dot executable (or an
+     * empty string if it could not be determined).
+     */
+    public String getDotVersion() {
+        String version = dotVersion;
+        if (version == null)
+            dotVersion = version = dotStatus.isOK() ? GraphViz.readDotVersion(dotLocation) : "";
+        return version;
+    }
+
+    private static List<String> tokenize(String commandLineExtension) {
+        List<String> tokens = new ArrayList<String>();
+        if (commandLineExtension != null)
+            for (String token : commandLineExtension.split(" "))
+                // extra spaces would otherwise show up as empty arguments
+                if (!token.isEmpty())
+                    tokens.add(token);
+        return tokens;
+    }
+}
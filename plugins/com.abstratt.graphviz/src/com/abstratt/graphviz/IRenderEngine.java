@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+/**
+ * Turns DOT contents into images (or any other format Graphviz supports).
+ * Engines are contributed through the
+ * <code>com.abstratt.graphviz.renderEngines</code> extension point, and the
+ * one to use is chosen in the preferences. Running dot as an external
+ * process is always available, and is used whenever the chosen engine is
+ * not.
+ *
+ * @see RenderEngineRegistry
+ */
+public interface IRenderEngine {
+    /**
+     * Returns an OK status if this engine can be used with the given
+     * settings, or an error status explaining why it cannot.
+     */
+    IStatus getStatus(GraphVizSettings settings);
+
+    /**
+     * Returns a string identifying the Graphviz version this engine uses, so
+     * outputs produced by different versions are never confused.
+     */
+    String getVersion(GraphVizSettings settings);
+
+    /**
+     * Renders the given DOT contents in the given format, writing the result
+     * to the given stream.
+     *
+     * @param dimensionX
+     *            the maximum width in pixels, or 0 for no limit
+     * @param dimensionY
+     *            the maximum height in pixels, or 0 for no limit
+     * @param monitor
+     *            a progress monitor to observe for cancellation, or
+     *            <code>null</code>
+     * @return a status describing any problems found (a status that is not
+     *         OK does not mean no output was produced)
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled
+     */
+    IStatus render(GraphVizSettings settings, byte[] dotContents, String format, int dimensionX, int dimensionY,
+            OutputStream output, IProgressMonitor monitor) throws IOException;
+
+    /**
+     * Like {@link #render(GraphVizSettings, byte[], String, int, int, OutputStream, IProgressMonitor)},
+     * but for DOT contents in a file. Engines that can read files by
+     * themselves should override this, by default the file is loaded in
+     * memory.
+     */
+    default IStatus render(GraphVizSettings settings, File dotFile, String format, int dimensionX, int dimensionY,
+            OutputStream output, IProgressMonitor monitor) throws IOException {
+        return render(settings, FileUtils.readFileToByteArray(dotFile), format, dimensionX, dimensionY, output,
+                monitor);
+    }
+}
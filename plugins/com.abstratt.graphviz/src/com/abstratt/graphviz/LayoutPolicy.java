@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides how a graph is laid out, based on its estimated size (see
+ * {@link DotGraphSize}). Small graphs are laid out by dot as they are. Larger
+ * ones get a budget on dot's most expensive phases (ranking, crossing
+ * minimization and spline routing). Very large ones are laid out by sfdp,
+ * which scales much better, unless they have clusters (which sfdp ignores)
+ * or choose a layout engine themselves, in which case dot gets an even
+ * tighter budget.
+ * <p>
+ * Graph attributes set in the DOT contents, as well as options set by the
+ * user, always take precedence over those chosen here.
+ * </p>
+ */
+public class LayoutPolicy {
+    /**
+     * Name of the system property (or environment variable) for the number
+     * of nodes plus edges from which dot is given a layout budget. Zero or
+     * less means never.
+     */
+    public static final String BUDGET_THRESHOLD = "com.abstratt.graphviz.layout.budgetThreshold"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for the number
+     * of nodes plus edges from which another layout engine is used. Zero or
+     * less means never.
+     */
+    public static final String ENGINE_THRESHOLD = "com.abstratt.graphviz.layout.engineThreshold"; //$NON-NLS-1$
+
+    public static final long DEFAULT_BUDGET_THRESHOLD = 2000;
+    public static final long DEFAULT_ENGINE_THRESHOLD = 20000;
+
+    private static final String[] BUDGET_OPTIONS = { "-Gnslimit=5", "-Gnslimit1=5", "-Gmclimit=0.5",
+            "-Gsearchsize=15" };
+    private static final String[] STRICT_BUDGET_OPTIONS = { "-Gnslimit=1", "-Gnslimit1=1", "-Gmclimit=0.1",
+            "-Gsearchsize=5" };
+    private static final String[] SFDP_OPTIONS = { "-Ksfdp", "-Gmaxiter=200" };
+
+    private final String name;
+    private final String[] options;
+    private final DotGraphSize size;
+
+    private LayoutPolicy(String name, String[] options, DotGraphSize size) {
+        this.name = name;
+        this.options = options;
+        this.size = size;
+    }
+
+    /**
+     * Returns whether graphs may be laid out other than as configured, in
+     * which case they need to be scanned first.
+     */
+    public static boolean isEnabled() {
+        return getBudgetThreshold() > 0 || getEngineThreshold() > 0;
+    }
+
+    /**
+     * Chooses the policy for a graph of the given size, rendered with the
+     * given settings.
+     */
+    public static LayoutPolicy choose(DotGraphSize size, GraphVizSettings settings) {
+        long elements = (long) size.getNodes() + size.getEdges();
+        long engineThreshold = getEngineThreshold();
+        if (engineThreshold > 0 && elements >= engineThreshold) {
+            if (size.getClusters() == 0 && !size.hasLayoutAttribute() && !isSet(settings, "-K"))
+                return new LayoutPolicy("sfdp", SFDP_OPTIONS, size);
+            return new LayoutPolicy("dot-strict", STRICT_BUDGET_OPTIONS, size);
+        }
+        long budgetThreshold = getBudgetThreshold();
+        if (budgetThreshold > 0 && elements >= budgetThreshold)
+            return new LayoutPolicy("dot-budget", BUDGET_OPTIONS, size);
+        return new LayoutPolicy("dot", new String[0], size);
+    }
+
+    /**
+     * Returns a description of how policies are chosen, which together with
+     * a graph and the settings it is rendered with determines the policy.
+     */
+    public static String getConfiguration() {
+        return getBudgetThreshold() + "/" + getEngineThreshold();
+    }
+
+    private static long getBudgetThreshold() {
+        return RenderCache.getLimit(BUDGET_THRESHOLD, DEFAULT_BUDGET_THRESHOLD);
+    }
+
+    private static long getEngineThreshold() {
+        return RenderCache.getLimit(ENGINE_THRESHOLD, DEFAULT_ENGINE_THRESHOLD);
+    }
+
+    /**
+     * Returns the given settings with this policy's options added, except
+     * for those already set there.
+     */
+    public GraphVizSettings apply(GraphVizSettings settings) {
+        List<String> added = new ArrayList<String>();
+        for (String option : options)
+            if (!isSet(settings, getKey(option)))
+                added.add(option);
+        return added.isEmpty() ? settings : settings.withOptions(added.toArray(new String[added.size()]));
+    }
+
+    /**
+     * Returns the part of an option that says what it sets (as in
+     * <code>-Gnslimit=</code> or <code>-K</code>).
+     */
+    private static String getKey(String option) {
+        int separator = option.indexOf('=');
+        return separator < 0 ? option.substring(0, 2) : option.substring(0, separator + 1);
+    }
+
+    private static boolean isSet(GraphVizSettings settings, String key) {
+        for (String option : settings.getCommandLineOptions())
+            if (option.startsWith(key))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns a short name for this policy (<code>dot</code>,
+     * <code>dot-budget</code>, <code>dot-strict</code> or
+     * <code>sfdp</code>).
+     */
+    public String getName() {
+        return name;
+    }
+
+    public DotGraphSize getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + ")";
+    }
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ProjectScope;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.content.IContentType;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.abstratt.pluginutils.LogUtils;
+
+/**
+ * Renders DOT files as they change, in the background, so they are ready by
+ * the time someone looks at them. By default, images are rendered into the
+ * render cache only, at the size images were last displayed at. If the
+ * {@link #OUTPUT_FORMATS} project preference is set, output files in those
+ * formats are written next to each DOT file instead.
+ *
+ * @see PreRenderNature
+ */
+public class PreRenderBuilder extends IncrementalProjectBuilder {
+    public static final String BUILDER_ID = GraphVizActivator.ID + ".preRenderBuilder"; //$NON-NLS-1$
+
+    /**
+     * Project preference (in the {@link GraphVizActivator#ID} node) with a
+     * comma-separated list of formats to write sibling output files in.
+     */
+    public static final String OUTPUT_FORMATS = "preRenderFormats"; //$NON-NLS-1$
+
+    public static final String DOT_CONTENT_TYPE = "com.abstratt.graphviz.dot"; //$NON-NLS-1$
+
+    /**
+     * Family all pre-rendering jobs belong to.
+     */
+    public static final Object JOB_FAMILY = PreRenderBuilder.class;
+
+    @Override
+    protected IProject[] build(int kind, Map<String, String> args, IProgressMonitor monitor) throws CoreException {
+        final IContentType dotContentType = Platform.getContentTypeManager().getContentType(DOT_CONTENT_TYPE);
+        if (dotContentType == null)
+            return null;
+        final List<IFile> changed = new ArrayList<IFile>();
+        IResourceDelta delta = kind == FULL_BUILD ? null : getDelta(getProject());
+        if (delta == null)
+            getProject().accept(new IResourceVisitor() {
+                public boolean visit(IResource resource) {
+                    if (isDOTFile(resource, dotContentType))
+                        changed.add((IFile) resource);
+                    return true;
+                }
+            });
+        else
+            delta.accept(new IResourceDeltaVisitor() {
+                public boolean visit(IResourceDelta delta) {
+                    IResource resource = delta.getResource();
+                    if (isDOTFile(resource, dotContentType)
+                            && (delta.getKind() == IResourceDelta.ADDED || (delta.getKind() == IResourceDelta.CHANGED && (delta
+                                    .getFlags() & IResourceDelta.CONTENT) != 0)))
+                        changed.add((IFile) resource);
+                    return true;
+                }
+            });
+        if (!changed.isEmpty())
+            new PreRenderJob(getProject(), changed, getOutputFormats(getProject())).schedule();
+        return null;
+    }
+
+    @Override
+    protected void clean(IProgressMonitor monitor) throws CoreException {
+        Job.getJobManager().cancel(getProject());
+    }
+
+    /**
+     * Returns the formats sibling outputs should be written in for the given
+     * project (empty if only the render cache should be populated).
+     */
+    public static List<String> getOutputFormats(IProject project) {
+        String configured = new ProjectScope(project).getNode(GraphVizActivator.ID).get(OUTPUT_FORMATS, "");
+        List<String> formats = new ArrayList<String>();
+        for (String format : configured.split(","))
+            if (!format.trim().isEmpty())
+                formats.add(format.trim());
+        return formats;
+    }
+
+    private static boolean isDOTFile(IResource resource, IContentType dotContentType) {
+        return resource.getType() == IResource.FILE && !resource.isDerived()
+                && dotContentType.isAssociatedWith(resource.getName());
+    }
+
+    /**
+     * Renders a set of DOT files from a project.
+     */
+    private static class PreRenderJob extends Job {
+        private final IProject project;
+        private final List<IFile> files;
+        private final List<String> outputFormats;
+
+        PreRenderJob(IProject project, List<IFile> files, List<String> outputFormats) {
+            super("Pre-rendering DOT files in " + project.getName());
+            this.project = project;
+            this.files = files;
+            this.outputFormats = outputFormats;
+            setSystem(true);
+            setPriority(DECORATE);
+        }
+
+        @Override
+        public boolean belongsTo(Object family) {
+            return family == JOB_FAMILY || family == project;
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            if (!GraphVizActivator.getInstance().getSettings().getRenderStatus().isOK())
+                // nothing we can do, and users are told about this elsewhere
+                return Status.OK_STATUS;
+            SubMonitor progress = SubMonitor.convert(monitor, 10);
+            if (outputFormats.isEmpty())
+                renderToCache(progress.newChild(10));
+            else
+                renderToFiles(progress.newChild(10));
+            return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+        }
+
+        private void renderToCache(final IProgressMonitor monitor) {
+            if (GraphVizActivator.getInstance().getRenderCache() == null)
+                return;
+            final GraphVizSettings settings = GraphVizActivator.getInstance().getSettings();
+            // what viewers will ask for: a layout to paint at any size, or an
+            // image for the size last shown
+            final String format = settings.isVectorRendering() ? "xdot" : "png"; //$NON-NLS-1$ //$NON-NLS-2$
+            final int[] size = settings.isVectorRendering() ? new int[] { 0, 0 } : GraphVizActivator.getInstance()
+                    .getDisplaySize();
+            monitor.beginTask(getName(), files.size());
+            // the render scheduler will keep the number of dot processes in check
+            ExecutorService executor = Executors.newFixedThreadPool(GraphVizActivator.getInstance()
+                    .getRenderScheduler().getLimit());
+            try {
+                for (final IFile file : files)
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            if (monitor.isCanceled())
+                                return;
+                            renderToCache(file, settings, format, size);
+                            synchronized (monitor) {
+                                monitor.worked(1);
+                            }
+                        }
+                    });
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            } finally {
+                monitor.done();
+            }
+        }
+
+        private void renderToCache(IFile file, GraphVizSettings settings, String format, int[] size) {
+            if (!file.exists())
+                return;
+            try {
+                IPath location = file.getLocation();
+                // the result is not needed, only the side effect of having it cached
+                if (location != null) {
+                    DotFileReference input = new DotFileReference(location.toFile(), file.getModificationStamp());
+                    GraphViz.load(input, format, size[0], size[1], settings, null);
+                } else {
+                    InputStream contents = file.getContents(true);
+                    try {
+                        GraphViz.load(contents, format, size[0], size[1], settings, null);
+                    } finally {
+                        contents.close();
+                    }
+                }
+            } catch (CoreException e) {
+                // problems will be reported once the file is actually looked at
+                LogUtils.debug(GraphVizActivator.ID, "Could not pre-render " + file + ": " + e.getMessage());
+            } catch (IOException e) {
+                LogUtils.debug(GraphVizActivator.ID, "Could not pre-render " + file + ": " + e.getMessage());
+            }
+        }
+
+        private void renderToFiles(IProgressMonitor monitor) {
+            List<File> inputs = new ArrayList<File>();
+            Set<IContainer> parents = new LinkedHashSet<IContainer>();
+            for (IFile file : files) {
+                IPath location = file.getLocation();
+                if (location != null && file.exists()) {
+                    inputs.add(location.toFile());
+                    parents.add(file.getParent());
+                }
+            }
+            SubMonitor progress = SubMonitor.convert(monitor, inputs.size() + parents.size());
+            BatchExporter exporter = new BatchExporter(outputFormats);
+            exporter.setParallelism(GraphVizActivator.getInstance().getRenderScheduler().getLimit());
+            // inputs just changed, so outputs are out of date regardless of timestamps
+            exporter.setForce(true);
+            BatchExporter.Result result = exporter.export(inputs, progress.newChild(inputs.size()));
+            for (Map.Entry<File, IStatus> failure : result.getFailures().entrySet())
+                LogUtils.debug(GraphVizActivator.ID, "Could not pre-render " + failure.getKey() + ": "
+                        + failure.getValue().getMessage());
+            // make the outputs visible in the workspace
+            for (IContainer parent : parents)
+                try {
+                    parent.refreshLocal(IResource.DEPTH_ONE, progress.newChild(1));
+                } catch (CoreException e) {
+                    LogUtils.logWarning(GraphVizActivator.ID, "Could not refresh " + parent, e);
+                }
+            LogUtils.debug(GraphVizActivator.ID, "Pre-rendered " + project.getName() + ": " + result);
+        }
+    }
+}
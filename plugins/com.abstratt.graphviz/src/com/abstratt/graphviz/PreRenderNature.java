@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.core.resources.ICommand;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IProjectNature;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * Nature for projects whose DOT files should be pre-rendered as they change.
+ *
+ * @see PreRenderBuilder
+ */
+public class PreRenderNature implements IProjectNature {
+    public static final String NATURE_ID = GraphVizActivator.ID + ".preRenderNature"; //$NON-NLS-1$
+
+    private IProject project;
+
+    /**
+     * Adds or removes the pre-rendering nature to/from the given project.
+     */
+    public static void setEnabled(IProject project, boolean enabled, IProgressMonitor monitor) throws CoreException {
+        IProjectDescription description = project.getDescription();
+        List<String> natures = new ArrayList<String>(Arrays.asList(description.getNatureIds()));
+        if (enabled == natures.contains(NATURE_ID))
+            return;
+        if (enabled)
+            natures.add(NATURE_ID);
+        else
+            natures.remove(NATURE_ID);
+        description.setNatureIds(natures.toArray(new String[natures.size()]));
+        project.setDescription(description, monitor);
+    }
+
+    public static boolean isEnabled(IProject project) throws CoreException {
+        return project.isOpen() && project.hasNature(NATURE_ID);
+    }
+
+    public void configure() throws CoreException {
+        IProjectDescription description = project.getDescription();
+        List<ICommand> commands = new ArrayList<ICommand>(Arrays.asList(description.getBuildSpec()));
+        for (ICommand command : commands)
+            if (PreRenderBuilder.BUILDER_ID.equals(command.getBuilderName()))
+                return;
+        ICommand command = description.newCommand();
+        command.setBuilderName(PreRenderBuilder.BUILDER_ID);
+        commands.add(command);
+        description.setBuildSpec(commands.toArray(new ICommand[commands.size()]));
+        project.setDescription(description, null);
+    }
+
+    public void deconfigure() throws CoreException {
+        IProjectDescription description = project.getDescription();
+        List<ICommand> commands = new ArrayList<ICommand>(Arrays.asList(description.getBuildSpec()));
+        for (int i = commands.size() - 1; i >= 0; i--)
+            if (PreRenderBuilder.BUILDER_ID.equals(commands.get(i).getBuilderName()))
+                commands.remove(i);
+        description.setBuildSpec(commands.toArray(new ICommand[commands.size()]));
+        project.setDescription(description, null);
+    }
+
+    public IProject getProject() {
+        return project;
+    }
+
+    public void setProject(IProject project) {
+        this.project = project;
+    }
+}
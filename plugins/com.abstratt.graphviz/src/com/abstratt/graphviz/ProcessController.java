@@ -14,7 +14,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 /**
  * Executes an external process synchronously, allowing the client to define a
@@ -40,14 +52,42 @@ public class ProcessController {
         }
     }
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How often (in milliseconds) to check whether execution has been
+     * cancelled.
+     */
+    private static final long CANCELLATION_CHECK_INTERVAL = 50;
+
+    /**
+     * Stream forwarding threads are shared by all controllers, and so are the
+     * buffers they use.
+     */
+    private static final ExecutorService FORWARDERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread forwarder = new Thread(r, "Stream forwarder");
+            forwarder.setDaemon(true);
+            return forwarder;
+        }
+    });
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
     private boolean finished;
     private OutputStream forwardStdErr;
     private InputStream forwardStdIn;
     private OutputStream forwardStdOut;
     private boolean killed;
+    private boolean cancelled;
+    private IProgressMonitor monitor;
     private String[] params;
-    private Process process;
-    private long startupTime;
+    private volatile Process process;
     private long timeLimit;
     private String[] env;
     private File baseDir;
@@ -68,58 +108,94 @@ public class ProcessController {
         this.baseDir = baseDir;
     }
 
-    private void controlProcess() {
-        new Thread("Process controller") {
-            @Override
-            public void run() {
-                while (!isFinished() && !timedOut())
-                    synchronized (this) {
-                        try {
-                            wait(100);
-                        } catch (InterruptedException e) {
-                            break;
-                        }
-                    }
-                kill();
-            }
-        }.start();
-    }
-
     /**
      * Causes the process to start executing. This call will block until the
      * process has completed. If <code>timeout</code> is specified, the process
      * will be interrupted if it takes more than the specified amount of time to
      * complete, causing a <code>TimedOutException</code> to be thrown.
      * Specifying zero as <code>timeout</code> means the process is not time
-     * constrained.
+     * constrained. If a progress monitor was set, the process is also killed
+     * as soon as the monitor is cancelled.
      * 
      * @return the process exit value
      * @throws InterruptedException
      * @throws IOException
      * @throws TimeOutException
      *             if the process did not complete in time
+     * @throws OperationCanceledException
+     *             if the process was killed due to cancellation
      */
     public int execute() throws InterruptedException, IOException, TimeOutException {
-        startupTime = System.currentTimeMillis();
+        long start = System.nanoTime();
         process = Runtime.getRuntime().exec(params, env, baseDir);
+        Metrics.timer("process.spawn").recordSince(start);
+        Future<?> stdErrForwarder = null, stdOutForwarder = null;
         if (forwardStdErr != null)
-            forwardStream("stderr", process.getErrorStream(), forwardStdErr);
+            stdErrForwarder = forwardStream("stderr", process.getErrorStream(), forwardStdErr, false);
         if (forwardStdOut != null)
-            forwardStream("stdout", process.getInputStream(), forwardStdOut);
+            stdOutForwarder = forwardStream("stdout", process.getInputStream(), forwardStdOut, false);
         if (forwardStdIn != null)
-            forwardStream("stdin", forwardStdIn, process.getOutputStream());
-        if (timeLimit > 0)
-            // ensures process execution time does not exceed the time limit
-            controlProcess();
+            forwardStream("stdin", forwardStdIn, process.getOutputStream(), true);
+        else
+            // nothing to feed the process with, let it see the end of input
+            process.getOutputStream().close();
         try {
-            return process.waitFor();
+            waitForCompletion();
+            int exitValue = process.waitFor();
+            // make sure all output has been forwarded before returning
+            long exited = System.nanoTime();
+            awaitForwarding(stdOutForwarder);
+            awaitForwarding(stdErrForwarder);
+            Metrics.timer("process.drain").recordSince(exited);
+            return exitValue;
         } finally {
             markFinished();
+            if (wasCancelled())
+                throw new OperationCanceledException();
             if (wasKilled())
                 throw new TimeOutException();
         }
     }
 
+    /**
+     * Waits until the process completes, killing it if it exceeds the time
+     * limit or if execution is cancelled.
+     */
+    private void waitForCompletion() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeLimit;
+        while (true) {
+            long toWait = timeLimit > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+            if (toWait <= 0) {
+                // ensures process execution time does not exceed the time limit
+                kill();
+                return;
+            }
+            if (monitor == null) {
+                if (!process.waitFor(toWait, TimeUnit.MILLISECONDS))
+                    kill();
+                return;
+            }
+            if (process.waitFor(Math.min(toWait, CANCELLATION_CHECK_INTERVAL), TimeUnit.MILLISECONDS))
+                return;
+            if (monitor.isCanceled()) {
+                synchronized (this) {
+                    cancelled = true;
+                }
+                kill();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes execution observe the given monitor, killing the process as soon
+     * as the monitor is cancelled. Must be called before execution has
+     * started.
+     */
+    public void setProgressMonitor(IProgressMonitor monitor) {
+        this.monitor = monitor;
+    }
+
     /**
      * Forwards the process standard error output to the given output stream.
      * Must be called before execution has started.
@@ -156,39 +232,41 @@ public class ProcessController {
         forwardStdOut = out;
     }
 
-    private void forwardStream(final String name, final InputStream in, final OutputStream out) {
-        new Thread("Stream forwarder [" + name + "]") {
-            @Override
+    /**
+     * Copies the given input stream to the given output stream until the end
+     * of the input is reached (for process output streams, that happens once
+     * the process terminates). If <code>closeOutput</code> is set, the output
+     * stream is closed when done, so a process reading from it sees the end of
+     * its input.
+     */
+    private Future<?> forwardStream(final String name, final InputStream in, final OutputStream out,
+            final boolean closeOutput) {
+        return FORWARDERS.submit(new Runnable() {
             public void run() {
-            	String key = UUID.randomUUID().toString();
-            	System.out.println("Started " + getName() + " - " + key);
                 try {
-                    while (!isFinished()) {
-                        while (safeIsAvailable(in) > 0)
-                            out.write(in.read());
-                        synchronized (this) {
-                            this.wait(100);
-                        }
-                    }
+                    IOUtils.copyLarge(in, out, BUFFERS.get());
                     out.flush();
                 } catch (IOException e) {
-                    GraphVizActivator.logUnexpected(null, e);
-                } catch (InterruptedException e) {
-                    GraphVizActivator.logUnexpected(null, e);
+                    // the process going away while we feed it is not our
+                    // problem, it will be reported by the exit code
+                    if (!closeOutput)
+                        GraphVizActivator.logUnexpected("Error forwarding " + name, e);
                 } finally {
-                	System.out.println("Finished " + getName() + " - " + key);
+                    if (closeOutput)
+                        IOUtils.closeQuietly(out);
                 }
             }
+        });
+    }
 
-            private int safeIsAvailable(InputStream in) {
-                try {
-                    return in.available();
-                } catch (IOException e) {
-                    // stream has been closed
-                    return 0;
-                }
-            }
-        }.start();
+    private void awaitForwarding(Future<?> forwarder) throws InterruptedException {
+        if (forwarder == null)
+            return;
+        try {
+            forwarder.get();
+        } catch (ExecutionException e) {
+            LogUtils.logError(GraphVizActivator.ID, null, e.getCause());
+        }
     }
 
     /**
@@ -210,10 +288,11 @@ public class ProcessController {
      */
     public void kill() {
         synchronized (this) {
-            if (isFinished())
+            if (isFinished() || process == null)
                 return;
             killed = true;
         }
+        Metrics.counter("process.kills").increment();
         process.destroy();
     }
 
@@ -222,17 +301,22 @@ public class ProcessController {
         notifyAll();
     }
 
-    protected synchronized boolean timedOut() {
-        return System.currentTimeMillis() - startupTime > timeLimit;
+    /**
+     * Returns whether the process was killed because its progress monitor was
+     * cancelled.
+     */
+    public synchronized boolean wasCancelled() {
+        return cancelled;
     }
 
     /**
-     * Returns whether the process was killed due to a time out.
+     * Returns whether the process was killed due to a time out (or
+     * cancellation).
      * 
      * @return <code>true</code> if the process was killed, <code>false</code>
      *         if the completed normally
      */
-    public boolean wasKilled() {
+    public synchronized boolean wasKilled() {
         return killed;
     }
 }
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+import com.abstratt.pluginutils.ConfigUtils;
+
+/**
+ * The default engine, which runs the dot executable configured in the
+ * preferences. Text formats are rendered by long-lived dot processes when
+ * possible (see {@link DotWorkerPool}), other formats by a new dot process
+ * per render. Output from a new dot process goes straight to the given
+ * stream, so large images are never held in memory on the way.
+ */
+public class ProcessRenderEngine implements IRenderEngine {
+    public static final String ENGINE_ID = "process"; //$NON-NLS-1$
+
+    private static final String DOT_EXTENSION = ".dot"; //$NON-NLS-1$
+    private static final String TMP_FILE_PREFIX = "graphviz"; //$NON-NLS-1$
+
+    public IStatus getStatus(GraphVizSettings settings) {
+        return settings.getDotStatus();
+    }
+
+    public String getVersion(GraphVizSettings settings) {
+        return settings.getDotLocation().toOSString() + ' ' + settings.getDotVersion();
+    }
+
+    public IStatus render(GraphVizSettings settings, byte[] dotContents, String format, int dimensionX,
+            int dimensionY, OutputStream output, IProgressMonitor monitor) throws IOException {
+        IStatus result = null;
+        DotWorkerPool workers = GraphVizActivator.getInstance().getDotWorkerPool();
+        if (workers != null && DotWorkerPool.supports(format) && settings.getDotStatus().isOK()
+                && DotWorkerPool.isSingleGraph(dotContents)) {
+            // held back, as a worker may fail half way through
+            ByteArrayOutputStream dotOutput = new ByteArrayOutputStream();
+            try {
+                result = workers.render(settings, format, GraphViz.buildOptions(format, dimensionX, dimensionY),
+                        dotContents, dotOutput, monitor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OperationCanceledException();
+            }
+            if (result != null) {
+                dotOutput.writeTo(output);
+                return result;
+            }
+            // start afresh, a new dot will say what went wrong
+        }
+        CountingOutputStream dotOutput = new CountingOutputStream(output);
+        if (!isUsingTempFiles())
+            result = GraphViz.runDot(settings, monitor, new ByteArrayInputStream(dotContents), dotOutput,
+                    GraphViz.toArray(GraphViz.buildOptions(format, dimensionX, dimensionY)));
+        if (result == null || (result.isOK() && dotOutput.getByteCount() == 0)) {
+            // dot did not seem to like pipes, try again with files
+            File dotInputFile = File.createTempFile(TMP_FILE_PREFIX, DOT_EXTENSION);
+            try {
+                FileUtils.writeByteArrayToFile(dotInputFile, dotContents);
+                result = runDotWithTempOutput(settings, format, dimensionX, dimensionY, dotInputFile, output,
+                        monitor);
+            } finally {
+                dotInputFile.delete();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes the file's location to dot, so its contents are never copied,
+     * unless long-lived dot processes can be used (those read their input
+     * from a pipe, but save starting a new dot every time).
+     */
+    @Override
+    public IStatus render(GraphVizSettings settings, File dotFile, String format, int dimensionX, int dimensionY,
+            OutputStream output, IProgressMonitor monitor) throws IOException {
+        if (GraphVizActivator.getInstance().getDotWorkerPool() != null && DotWorkerPool.supports(format)
+                && settings.getDotStatus().isOK())
+            return render(settings, FileUtils.readFileToByteArray(dotFile), format, dimensionX, dimensionY, output,
+                    monitor);
+        IStatus result = null;
+        CountingOutputStream dotOutput = new CountingOutputStream(output);
+        if (!isUsingTempFiles()) {
+            List<String> options = GraphViz.buildOptions(format, dimensionX, dimensionY);
+            options.add(dotFile.getAbsolutePath());
+            result = GraphViz.runDot(settings, monitor, null, dotOutput, GraphViz.toArray(options));
+        }
+        if (result == null || (result.isOK() && dotOutput.getByteCount() == 0))
+            // dot did not seem to like pipes, try again with an output file
+            result = runDotWithTempOutput(settings, format, dimensionX, dimensionY, dotFile, output, monitor);
+        return result;
+    }
+
+    private static boolean isUsingTempFiles() {
+        return Boolean.parseBoolean(ConfigUtils.get(GraphViz.USE_TEMP_FILES));
+    }
+
+    /**
+     * Runs dot on the given input file, producing output in a temporary file
+     * which is then copied to the given stream.
+     */
+    private static IStatus runDotWithTempOutput(GraphVizSettings settings, String format, int dimensionX,
+            int dimensionY, File dotInputFile, OutputStream dotOutput, IProgressMonitor monitor)
+            throws IOException {
+        File dotOutputFile = File.createTempFile(TMP_FILE_PREFIX, "." + format);
+        try {
+            // we created the output file just so we would know an output
+            // location to pass to dot
+            dotOutputFile.delete();
+            IStatus result = GraphViz.runDot(settings, monitor, null, System.out, GraphViz.toArray(GraphViz
+                    .buildFileOptions(format, dimensionX, dimensionY, dotInputFile, dotOutputFile)));
+            if (dotOutputFile.isFile())
+                FileUtils.copyFile(dotOutputFile, dotOutput);
+            return result;
+        } finally {
+            dotOutputFile.delete();
+        }
+    }
+}
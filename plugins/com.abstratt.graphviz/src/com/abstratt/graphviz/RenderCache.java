@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.abstratt.pluginutils.ConfigUtils;
+import com.abstratt.pluginutils.LogUtils;
+
+/**
+ * A content-addressed cache for dot outputs. Entries are keyed by a hash of
+ * everything that may affect what dot produces (see
+ * {@link #computeKey(byte[], String...)}), and are kept on disk, with the most
+ * recently used ones also kept in memory. Both tiers are size-bounded, and
+ * evict the least recently used entries first.
+ */
+public class RenderCache {
+    /**
+     * Name of the system property (or environment variable) that can be set
+     * to <code>false</code> to disable render caching.
+     */
+    public static final String ENABLED = "com.abstratt.graphviz.cache.enabled"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for the maximum
+     * number of bytes to keep in memory.
+     */
+    public static final String MEMORY_LIMIT = "com.abstratt.graphviz.cache.memoryLimit"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for the maximum
+     * number of bytes to keep on disk.
+     */
+    public static final String DISK_LIMIT = "com.abstratt.graphviz.cache.diskLimit"; //$NON-NLS-1$
+
+    public static final long DEFAULT_MEMORY_LIMIT = 64 * 1024 * 1024;
+    public static final long DEFAULT_DISK_LIMIT = 512 * 1024 * 1024;
+
+    private static final String TMP_FILE_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+    private final File directory;
+    private final long memoryLimit;
+    private final long diskLimit;
+
+    /** Least recently used entries come first. */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long memorySize;
+    /** Lazily computed, -1 means unknown. */
+    private long diskSize = -1;
+    private final Object diskLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory
+     *            where to keep cached entries, or <code>null</code> for a
+     *            memory-only cache
+     * @param memoryLimit
+     *            maximum number of bytes to keep in memory
+     * @param diskLimit
+     *            maximum number of bytes to keep on disk
+     */
+    public RenderCache(File directory, long memoryLimit, long diskLimit) {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        if (directory != null)
+            directory.mkdirs();
+    }
+
+    /**
+     * Computes a cache key out of dot's input and anything else that may
+     * affect its output (format, dimensions, dot version, options...).
+     */
+    public static String computeKey(byte[] dotContents, String... discriminators) {
+        return computeKey(computeContentsKey(dotContents), discriminators);
+    }
+
+    /**
+     * Like {@link #computeKey(byte[], String...)}, but for dot's input in a
+     * file, which is streamed through rather than loaded in memory. The same
+     * contents produce the same key no matter where they come from.
+     */
+    public static String computeKey(File dotFile, String... discriminators) throws IOException {
+        return computeKey(computeContentsKey(dotFile), discriminators);
+    }
+
+    /**
+     * Like {@link #computeKey(byte[], String...)}, but for dot's input as
+     * already identified by {@link #computeContentsKey(byte[])} or
+     * {@link #computeContentsKey(File)}, so it need not be read again.
+     */
+    public static String computeKey(String contentsKey, String... discriminators) {
+        MessageDigest digest = createDigest(discriminators);
+        digest.update(contentsKey.getBytes(StandardCharsets.UTF_8));
+        return toKey(digest);
+    }
+
+    /**
+     * Computes a key that identifies the given DOT contents alone.
+     */
+    public static String computeContentsKey(byte[] dotContents) {
+        MessageDigest digest = createDigest();
+        digest.update(dotContents);
+        return toKey(digest);
+    }
+
+    /**
+     * Like {@link #computeContentsKey(byte[])}, but streaming the contents
+     * through from the given file.
+     */
+    public static String computeContentsKey(File dotFile) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream contents = new FileInputStream(dotFile);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = contents.read(buffer)) >= 0)
+                digest.update(buffer, 0, read);
+        } finally {
+            contents.close();
+        }
+        return toKey(digest);
+    }
+
+    private static MessageDigest createDigest(String... discriminators) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (String discriminator : discriminators) {
+            byte[] asBytes = String.valueOf(discriminator).getBytes(StandardCharsets.UTF_8);
+            // length-prefixed so different splits never produce the same key
+            digest.update(Integer.toString(asBytes.length).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ':');
+            digest.update(asBytes);
+        }
+        return digest;
+    }
+
+    private static String toKey(MessageDigest digest) {
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached output for the given key, or <code>null</code> if
+     * there is none.
+     */
+    public byte[] get(String key) {
+        byte[] found;
+        synchronized (memory) {
+            found = memory.get(key);
+        }
+        if (found == null) {
+            found = readFromDisk(key);
+            if (found != null)
+                keepInMemory(key, found);
+        }
+        if (found == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // cached entries are shared, so never hand them out
+        return Arrays.copyOf(found, found.length);
+    }
+
+    public void put(String key, byte[] output) {
+        byte[] copy = Arrays.copyOf(output, output.length);
+        keepInMemory(key, copy);
+        writeToDisk(key, copy);
+    }
+
+    /**
+     * Returns the size of the largest output kept in memory. Outputs that go
+     * elsewhere, as when exporting to a file, are only collected for caching
+     * up to this size.
+     */
+    public long getMaxEntrySize() {
+        return memoryLimit / 4;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Discards all cached entries (statistics are preserved).
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memorySize = 0;
+        }
+        if (directory == null)
+            return;
+        synchronized (diskLock) {
+            File[] entries = directory.listFiles();
+            if (entries != null)
+                for (File entry : entries)
+                    entry.delete();
+            diskSize = 0;
+        }
+    }
+
+    private void keepInMemory(String key, byte[] output) {
+        // large outputs would just push everything else out
+        if (output.length > getMaxEntrySize())
+            return;
+        synchronized (memory) {
+            byte[] previous = memory.put(key, output);
+            if (previous != null)
+                memorySize -= previous.length;
+            memorySize += output.length;
+            for (Iterator<byte[]> it = memory.values().iterator(); memorySize > memoryLimit && it.hasNext();) {
+                memorySize -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (directory == null)
+            return null;
+        File entry = new File(directory, key);
+        try {
+            byte[] contents = FileUtils.readFileToByteArray(entry);
+            // least recently used entries are the first to go
+            entry.setLastModified(System.currentTimeMillis());
+            return contents;
+        } catch (IOException e) {
+            // not cached (or just evicted)
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] output) {
+        if (directory == null || output.length > diskLimit)
+            return;
+        File entry = new File(directory, key);
+        File tmpEntry = new File(directory, key + TMP_FILE_SUFFIX);
+        synchronized (diskLock) {
+            try {
+                long previousLength = entry.length();
+                FileUtils.writeByteArrayToFile(tmpEntry, output);
+                // readers should never see a partially written entry
+                entry.delete();
+                if (!tmpEntry.renameTo(entry)) {
+                    tmpEntry.delete();
+                    return;
+                }
+                if (diskSize >= 0)
+                    diskSize += output.length - previousLength;
+                evictFromDisk();
+            } catch (IOException e) {
+                tmpEntry.delete();
+                LogUtils.logWarning(GraphVizActivator.ID, "Could not write to render cache at " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Trims the disk cache down to 90% of its limit. Must be called with the
+     * disk lock held.
+     */
+    private void evictFromDisk() {
+        File[] entries = null;
+        if (diskSize < 0) {
+            entries = directory.listFiles();
+            diskSize = 0;
+            if (entries != null)
+                for (File entry : entries)
+                    diskSize += entry.length();
+        }
+        if (diskSize <= diskLimit)
+            return;
+        if (entries == null)
+            entries = directory.listFiles();
+        if (entries == null)
+            return;
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (int i = 0; i < entries.length && diskSize > diskLimit * 9 / 10; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete())
+                diskSize -= length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int memoryEntries;
+        synchronized (memory) {
+            memoryEntries = memory.size();
+        }
+        return "Render cache: " + hits + " hits, " + misses + " misses, " + memoryEntries + " entries in memory"; //$NON-NLS-1$
+    }
+
+    /**
+     * Convenience for reading a size limit from the configuration.
+     */
+    static long getLimit(String name, long defaultValue) {
+        String configured = ConfigUtils.get(name);
+        if (configured == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(configured.trim());
+        } catch (NumberFormatException e) {
+            LogUtils.logWarning(GraphVizActivator.ID, "Invalid value for " + name + ": " + configured, null);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.eclipse.core.runtime.IStatus;
+
+import com.abstratt.pluginutils.ConfigUtils;
+
+/**
+ * Keeps records of the most recent renders, for troubleshooting. Only the
+ * last few renders are kept, and only a prefix of their input and error
+ * output, so memory use is bounded no matter how large the graphs are.
+ * Disabled unless the {@link #ENABLED} switch (or the plug-in debug switch)
+ * is set, in which case renders are also logged as they complete.
+ */
+public class RenderDiagnostics {
+    /**
+     * Name of the system property (or environment variable) that can be set
+     * to <code>true</code> to keep render records.
+     */
+    public static final String ENABLED = "com.abstratt.graphviz.diagnostics"; //$NON-NLS-1$
+    /**
+     * Name of the system property (or environment variable) for the number of
+     * render records to keep.
+     */
+    public static final String CAPACITY = "com.abstratt.graphviz.diagnostics.capacity"; //$NON-NLS-1$
+
+    public static final int DEFAULT_CAPACITY = 50;
+
+    /** How much of dot's input and error output to keep per render. */
+    static final int MAX_TEXT_LENGTH = 4 * 1024;
+
+    /**
+     * What is known about one render.
+     */
+    public static class Record {
+        private final long startTime = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final String format;
+        private final int dimensionX;
+        private final int dimensionY;
+        private final int inputLength;
+        private final String input;
+        private boolean cacheHit;
+        private String errorOutput = "";
+        private Integer exitCode;
+        private long waitMillis;
+        private long runMillis;
+        private long totalMillis;
+        private int outputLength;
+        private int severity = IStatus.CANCEL;
+        private String problems = "";
+        private String layoutPolicy = "";
+
+        /**
+         * @param dotContents
+         *            dot's input, or at least its first
+         *            {@link RenderDiagnostics#MAX_TEXT_LENGTH} bytes
+         * @param inputLength
+         *            the actual length of dot's input
+         */
+        Record(byte[] dotContents, int inputLength, String format, int dimensionX, int dimensionY) {
+            this.format = format;
+            this.dimensionX = dimensionX;
+            this.dimensionY = dimensionY;
+            this.inputLength = inputLength;
+            this.input = truncate(dotContents, inputLength);
+        }
+
+        void cacheHit() {
+            cacheHit = true;
+        }
+
+        void layoutChosen(String layoutPolicy) {
+            this.layoutPolicy = layoutPolicy;
+        }
+
+        /**
+         * Records how dot's execution went.
+         *
+         * @param waitNanos
+         *            how long the render waited for a render slot
+         * @param runNanos
+         *            how long dot ran for
+         */
+        void ran(Integer exitCode, byte[] errorOutput, int errorOutputLength, long waitNanos, long runNanos) {
+            this.exitCode = exitCode;
+            this.errorOutput = truncate(errorOutput, errorOutputLength);
+            this.waitMillis += waitNanos / 1000000;
+            this.runMillis += runNanos / 1000000;
+        }
+
+        /**
+         * @param status
+         *            the outcome, or <code>null</code> if the render was
+         *            abandoned (cancelled or failed unexpectedly)
+         */
+        void finished(int outputLength, IStatus status) {
+            this.outputLength = outputLength;
+            this.totalMillis = (System.nanoTime() - start) / 1000000;
+            if (status == null)
+                return;
+            this.severity = status.getSeverity();
+            // only the gist, statuses may carry the whole input
+            StringBuilder messages = new StringBuilder();
+            for (IStatus child : status.isMultiStatus() ? status.getChildren() : new IStatus[] { status })
+                if (!child.isOK())
+                    messages.append(child.getMessage()).append('\n');
+            byte[] asBytes = messages.toString().trim().getBytes(StandardCharsets.UTF_8);
+            this.problems = truncate(asBytes, asBytes.length);
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public int getDimensionX() {
+            return dimensionX;
+        }
+
+        public int getDimensionY() {
+            return dimensionY;
+        }
+
+        public int getInputLength() {
+            return inputLength;
+        }
+
+        /**
+         * Returns the beginning of dot's input.
+         */
+        public String getInput() {
+            return input;
+        }
+
+        public boolean isCacheHit() {
+            return cacheHit;
+        }
+
+        /**
+         * Returns how the graph was laid out, along with its estimated size
+         * (see {@link LayoutPolicy}), or an empty string if that was not
+         * decided here.
+         */
+        public String getLayoutPolicy() {
+            return layoutPolicy;
+        }
+
+        /**
+         * Returns the beginning of dot's error output.
+         */
+        public String getErrorOutput() {
+            return errorOutput;
+        }
+
+        /**
+         * Returns dot's exit code, or <code>null</code> if dot did not run
+         * (or did not finish).
+         */
+        public Integer getExitCode() {
+            return exitCode;
+        }
+
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public int getOutputLength() {
+            return outputLength;
+        }
+
+        /**
+         * Returns the severity of the render outcome (as in
+         * {@link IStatus#getSeverity()}), {@link IStatus#CANCEL} if it did not
+         * complete.
+         */
+        public int getSeverity() {
+            return severity;
+        }
+
+        /**
+         * Returns the beginning of the problems reported for the render.
+         */
+        public String getProblems() {
+            return problems;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder description = new StringBuilder();
+            description.append(new Date(startTime)).append(": ").append(format);
+            description.append(' ').append(dimensionX).append('x').append(dimensionY);
+            description.append(", ").append(inputLength).append(" bytes in, ").append(outputLength)
+                    .append(" bytes out");
+            if (!layoutPolicy.isEmpty())
+                description.append(", layout ").append(layoutPolicy);
+            if (cacheHit)
+                description.append(", cached");
+            else
+                description.append(", exit code ").append(exitCode);
+            description.append(", waited ").append(waitMillis).append(" ms, ran ").append(runMillis)
+                    .append(" ms, total ").append(totalMillis).append(" ms");
+            if (!problems.isEmpty())
+                description.append("\n").append(problems);
+            if (!errorOutput.isEmpty())
+                description.append("\nError output:\n").append(errorOutput);
+            return description.toString();
+        }
+
+        private static String truncate(byte[] contents, int length) {
+            // the contents may be incomplete, as long as there is enough to show
+            int shown = Math.min(Math.min(length, contents.length), MAX_TEXT_LENGTH);
+            String asString = new String(contents, 0, shown, StandardCharsets.UTF_8);
+            return length > MAX_TEXT_LENGTH ? asString + "..." : asString;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Record> records;
+
+    public RenderDiagnostics(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.records = new ArrayDeque<Record>(this.capacity);
+    }
+
+    /**
+     * Returns whether render records should be kept.
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(ConfigUtils.get(ENABLED)) || Boolean.getBoolean(GraphVizActivator.ID + ".debug");
+    }
+
+    void add(Record record) {
+        synchronized (records) {
+            if (records.size() == capacity)
+                records.removeFirst();
+            records.addLast(record);
+        }
+    }
+
+    /**
+     * Returns the records kept, oldest first.
+     */
+    public List<Record> getRecords() {
+        synchronized (records) {
+            return new ArrayList<Record>(records);
+        }
+    }
+
+    public void clear() {
+        synchronized (records) {
+            records.clear();
+        }
+    }
+}
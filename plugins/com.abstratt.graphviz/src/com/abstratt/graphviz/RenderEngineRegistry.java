@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IConfigurationElement;
+import org.eclipse.core.runtime.IExtensionRegistry;
+import org.eclipse.core.runtime.RegistryFactory;
+
+import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.RegistryReader;
+
+/**
+ * Knows the render engines available: the built-in one, which runs dot as an
+ * external process, plus any contributed through the
+ * <code>com.abstratt.graphviz.renderEngines</code> extension point.
+ */
+public class RenderEngineRegistry {
+    public static class RenderEngineDescriptor {
+        private final String id;
+        private final String name;
+        private final IConfigurationElement configElement;
+        private IRenderEngine engine;
+
+        RenderEngineDescriptor(String id, String name, IRenderEngine engine) {
+            this.id = id;
+            this.name = name;
+            this.configElement = null;
+            this.engine = engine;
+        }
+
+        RenderEngineDescriptor(IConfigurationElement configElement) {
+            this.id = configElement.getAttribute("id");
+            this.name = configElement.getAttribute("name");
+            this.configElement = configElement;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the engine, instantiating it on first use, or
+         * <code>null</code> if it could not be instantiated.
+         */
+        public synchronized IRenderEngine getEngine() {
+            if (engine == null && configElement != null)
+                try {
+                    engine = (IRenderEngine) configElement.createExecutableExtension(RegistryReader.ATT_CLASS);
+                } catch (CoreException e) {
+                    LogUtils.logError(GraphVizActivator.ID, "Could not instantiate render engine " + id, e);
+                }
+            return engine;
+        }
+    }
+
+    private static final String RENDER_ENGINES_XP = GraphVizActivator.ID + ".renderEngines"; //$NON-NLS-1$
+
+    private final List<RenderEngineDescriptor> descriptors = new ArrayList<RenderEngineDescriptor>();
+
+    public RenderEngineRegistry() {
+        descriptors.add(new RenderEngineDescriptor(ProcessRenderEngine.ENGINE_ID, "External dot process",
+                new ProcessRenderEngine()));
+        build();
+    }
+
+    private void build() {
+        IExtensionRegistry registry = RegistryFactory.getRegistry();
+        // no registry when running outside of a platform
+        if (registry == null)
+            return;
+        new RegistryReader() {
+            @Override
+            protected String getNamespace() {
+                return GraphVizActivator.ID;
+            }
+
+            @Override
+            protected boolean readElement(IConfigurationElement element) {
+                if (!"engine".equals(element.getName()))
+                    return false;
+                if (element.getAttribute("id") == null)
+                    logMissingAttribute(element, "id");
+                else
+                    descriptors.add(new RenderEngineDescriptor(element));
+                return true;
+            }
+        }.readRegistry(registry, RENDER_ENGINES_XP);
+    }
+
+    /**
+     * Returns all known engines, the built-in one first.
+     */
+    public List<RenderEngineDescriptor> getDescriptors() {
+        return Collections.unmodifiableList(descriptors);
+    }
+
+    /**
+     * Returns the engine with the given id, or <code>null</code> if there is
+     * no such engine.
+     */
+    public RenderEngineDescriptor find(String id) {
+        for (RenderEngineDescriptor descriptor : descriptors)
+            if (descriptor.getId().equals(id))
+                return descriptor;
+        return null;
+    }
+
+    /**
+     * Returns the built-in engine, which runs dot as an external process.
+     */
+    public IRenderEngine getDefaultEngine() {
+        return descriptors.get(0).getEngine();
+    }
+}
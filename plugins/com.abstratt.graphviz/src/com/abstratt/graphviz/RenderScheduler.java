@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+/**
+ * Bounds the number of dot processes that may run at the same time. Renders
+ * requested beyond that limit wait, in arrival order, for a running one to
+ * finish.
+ */
+public class RenderScheduler {
+    /**
+     * A semaphore whose number of permits can also be reduced.
+     */
+    private static class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Slots() {
+            super(0, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    private static final long CANCELLATION_CHECK_INTERVAL = 50;
+
+    private final Slots slots = new Slots();
+    private int limit;
+
+    public RenderScheduler(int limit) {
+        setLimit(limit);
+    }
+
+    public static int getDefaultLimit() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Changes the maximum number of concurrent renders. Renders already
+     * running are not affected, the new limit applies to those starting
+     * afterwards.
+     */
+    public synchronized void setLimit(int newLimit) {
+        newLimit = Math.max(1, newLimit);
+        if (newLimit > limit)
+            slots.release(newLimit - limit);
+        else if (newLimit < limit)
+            slots.reducePermits(limit - newLimit);
+        limit = newLimit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Blocks until a render may start. Every successful call must be paired
+     * with a call to {@link #release()}.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Like {@link #acquire()}, but gives up waiting if the given monitor is
+     * cancelled.
+     * 
+     * @throws OperationCanceledException
+     *             if the monitor was cancelled before a render could start
+     */
+    public void acquire(IProgressMonitor monitor) throws InterruptedException {
+        if (monitor == null) {
+            acquire();
+            return;
+        }
+        while (!slots.tryAcquire(CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+            if (monitor.isCanceled())
+                throw new OperationCanceledException();
+    }
+
+    public void release() {
+        slots.release();
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The drawing operations produced by dot's xdot output for a graph, in the
+ * order they should be painted. Coordinates are in points, with the origin
+ * at the bottom left corner of the graph's bounding box, as in dot's output.
+ * Once laid out, a graph can be painted at any scale without running dot
+ * again.
+ *
+ * @see XDotParser
+ */
+public class XDotDisplayList {
+    /**
+     * A single xdot operation. The kind is the operation letter as defined by
+     * the xdot format (for instance, <code>E</code> for a filled ellipse,
+     * <code>T</code> for text, <code>c</code> for the pen color), the values
+     * are its numeric arguments (coordinates come in x, y pairs), and the
+     * text is its string argument, if any.
+     */
+    public static class Operation {
+        private final char kind;
+        private final double[] values;
+        private final String text;
+
+        public Operation(char kind, double[] values, String text) {
+            this.kind = kind;
+            this.values = values;
+            this.text = text;
+        }
+
+        public char getKind() {
+            return kind;
+        }
+
+        public double[] getValues() {
+            return values;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * The operations in one drawing attribute (such as a node's
+     * <code>_draw_</code> or an edge's <code>_hdraw_</code>). Drawing state
+     * (colors, font, style) does not carry over from one drawing to the next.
+     */
+    public static class Drawing {
+        private final List<Operation> operations;
+        private final double[] bounds;
+
+        public Drawing(List<Operation> operations, double[] bounds) {
+            this.operations = operations;
+            this.bounds = bounds;
+        }
+
+        public List<Operation> getOperations() {
+            return operations;
+        }
+
+        /**
+         * Returns (an approximation of) the area this drawing covers, as
+         * left, bottom, right and top coordinates.
+         */
+        public double[] getBounds() {
+            return bounds;
+        }
+    }
+
+    private final double[] boundingBox;
+    private final List<Drawing> drawings;
+
+    public XDotDisplayList(double[] boundingBox, List<Drawing> drawings) {
+        this.boundingBox = boundingBox;
+        this.drawings = Collections.unmodifiableList(drawings);
+    }
+
+    /**
+     * Returns the graph's bounding box, as left, bottom, right and top
+     * coordinates.
+     */
+    public double[] getBoundingBox() {
+        return boundingBox;
+    }
+
+    public double getWidth() {
+        return boundingBox[2] - boundingBox[0];
+    }
+
+    public double getHeight() {
+        return boundingBox[3] - boundingBox[1];
+    }
+
+    public List<Drawing> getDrawings() {
+        return drawings;
+    }
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2007 EclipseGraphviz contributors.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     abstratt technologies
+ *******************************************************************************/
+package com.abstratt.graphviz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.abstratt.graphviz.XDotDisplayList.Drawing;
+import com.abstratt.graphviz.XDotDisplayList.Operation;
+
+/**
+ * Reads the output dot produces for <code>-Txdot</code> into a
+ * {@link XDotDisplayList}. Only the graph's bounding box and the drawing
+ * attributes matter here, so the DOT syntax is scanned just enough to find
+ * attribute assignments.
+ */
+public class XDotParser {
+    private static final Set<String> DRAWING_ATTRIBUTES = new HashSet<String>(Arrays.asList("_draw_", "_ldraw_",
+            "_hdraw_", "_tdraw_", "_hldraw_", "_tldraw_"));
+
+    /** Font size assumed until an operation sets one. */
+    private static final double DEFAULT_FONT_SIZE = 14;
+
+    /**
+     * Parses the given xdot output.
+     *
+     * @throws IllegalArgumentException
+     *             if the output could not be understood
+     */
+    public static XDotDisplayList parse(byte[] xdot) {
+        String source = new String(xdot, StandardCharsets.UTF_8);
+        double[] boundingBox = null;
+        List<Drawing> drawings = new ArrayList<Drawing>();
+        int depth = 0;
+        String lastId = null;
+        String key = null;
+        int length = source.length();
+        int i = 0;
+        while (i < length) {
+            char c = source.charAt(i);
+            String token;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if ((c == '#' && (i == 0 || source.charAt(i - 1) == '\n'))
+                    || (c == '/' && i + 1 < length && source.charAt(i + 1) == '/')) {
+                // line comments and preprocessor output
+                while (i < length && source.charAt(i) != '\n')
+                    i++;
+                continue;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                continue;
+            } else if (c == '"') {
+                StringBuilder value = new StringBuilder();
+                for (i++; i < length && source.charAt(i) != '"'; i++) {
+                    char current = source.charAt(i);
+                    if (current == '\\' && i + 1 < length) {
+                        char escaped = source.charAt(i + 1);
+                        if (escaped == '"') {
+                            value.append('"');
+                            i++;
+                            continue;
+                        }
+                        // a backslash before a line break continues the line
+                        if (escaped == '\n' || escaped == '\r') {
+                            i++;
+                            if (escaped == '\r' && i + 1 < length && source.charAt(i + 1) == '\n')
+                                i++;
+                            continue;
+                        }
+                    }
+                    value.append(current);
+                }
+                i++;
+                token = value.toString();
+            } else if (c == '<') {
+                int start = ++i;
+                for (int nesting = 1; i < length && nesting > 0; i++)
+                    if (source.charAt(i) == '<')
+                        nesting++;
+                    else if (source.charAt(i) == '>')
+                        nesting--;
+                token = source.substring(start, Math.max(start, i - 1));
+            } else if (isIdentifierPart(c)) {
+                int start = i;
+                while (i < length && isIdentifierPart(source.charAt(i)))
+                    i++;
+                token = source.substring(start, i);
+            } else {
+                i++;
+                if (c == '{')
+                    depth++;
+                else if (c == '}')
+                    depth--;
+                key = c == '=' ? lastId : null;
+                lastId = null;
+                continue;
+            }
+            if (key == null) {
+                lastId = token;
+                continue;
+            }
+            if (key.equals("bb") && boundingBox == null && depth == 1)
+                boundingBox = parseBoundingBox(token);
+            else if (DRAWING_ATTRIBUTES.contains(key)) {
+                Drawing drawing = parseDrawing(token);
+                if (drawing != null)
+                    drawings.add(drawing);
+            }
+            key = null;
+            lastId = null;
+        }
+        if (boundingBox == null)
+            throw new IllegalArgumentException("No bounding box found, not xdot output?");
+        return new XDotDisplayList(boundingBox, drawings);
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-' || c >= 0x80;
+    }
+
+    private static double[] parseBoundingBox(String value) {
+        String[] coordinates = value.split(",");
+        if (coordinates.length != 4)
+            throw new IllegalArgumentException("Invalid bounding box: " + value);
+        double[] boundingBox = new double[4];
+        for (int i = 0; i < boundingBox.length; i++)
+            boundingBox[i] = parseNumber(coordinates[i].trim());
+        return boundingBox;
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + value);
+        }
+    }
+
+    /**
+     * Parses the operations in a drawing attribute. Returns
+     * <code>null</code> if they do not draw anything.
+     */
+    static Drawing parseDrawing(String value) {
+        OperationReader reader = new OperationReader(value.getBytes(StandardCharsets.UTF_8));
+        List<Operation> operations = new ArrayList<Operation>();
+        double[] bounds = null;
+        double fontSize = DEFAULT_FONT_SIZE;
+        while (reader.skipSpaces()) {
+            char kind = reader.nextKind();
+            double[] values;
+            String text = null;
+            switch (kind) {
+            case 'E':
+            case 'e':
+                values = reader.nextNumbers(4);
+                bounds = include(bounds, values[0] - values[2], values[1] - values[3]);
+                bounds = include(bounds, values[0] + values[2], values[1] + values[3]);
+                break;
+            case 'P':
+            case 'p':
+            case 'L':
+            case 'B':
+            case 'b':
+                values = reader.nextNumbers(2 * reader.nextInt());
+                for (int i = 0; i + 1 < values.length; i += 2)
+                    bounds = include(bounds, values[i], values[i + 1]);
+                break;
+            case 'T':
+                values = reader.nextNumbers(4);
+                text = reader.nextString();
+                // the justification is not taken into account, as the text
+                // width is only a hint anyway
+                bounds = include(bounds, values[0] - values[3], values[1] - fontSize / 2);
+                bounds = include(bounds, values[0] + values[3], values[1] + fontSize);
+                break;
+            case 'F':
+                values = reader.nextNumbers(1);
+                fontSize = values[0];
+                text = reader.nextString();
+                break;
+            case 'I':
+                values = reader.nextNumbers(4);
+                text = reader.nextString();
+                bounds = include(bounds, values[0], values[1]);
+                bounds = include(bounds, values[0] + values[2], values[1] + values[3]);
+                break;
+            case 'C':
+            case 'c':
+            case 'S':
+                values = new double[0];
+                text = reader.nextString();
+                break;
+            case 't':
+                values = new double[] { reader.nextInt() };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown xdot operation: " + kind);
+            }
+            operations.add(new Operation(kind, values, text));
+        }
+        return bounds == null ? null : new Drawing(operations, bounds);
+    }
+
+    private static double[] include(double[] bounds, double x, double y) {
+        if (bounds == null)
+            return new double[] { x, y, x, y };
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.max(bounds[2], x);
+        bounds[3] = Math.max(bounds[3], y);
+        return bounds;
+    }
+
+    /**
+     * Reads the operations in a drawing attribute. String arguments are
+     * prefixed with their length in bytes, hence working on bytes rather
+     * than characters.
+     */
+    private static class OperationReader {
+        private final byte[] bytes;
+        private int position;
+
+        OperationReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Skips any spaces, returning whether there is anything left.
+         */
+        boolean skipSpaces() {
+            while (position < bytes.length && Character.isWhitespace((char) bytes[position]))
+                position++;
+            return position < bytes.length;
+        }
+
+        char nextKind() {
+            skipSpaces();
+            return (char) bytes[position++];
+        }
+
+        private String nextToken() {
+            if (!skipSpaces())
+                throw new IllegalArgumentException("Unexpected end of xdot operations");
+            int start = position;
+            while (position < bytes.length && !Character.isWhitespace((char) bytes[position]))
+                position++;
+            return new String(bytes, start, position - start, StandardCharsets.US_ASCII);
+        }
+
+        int nextInt() {
+            String token = nextToken();
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid count: " + token);
+            }
+        }
+
+        double[] nextNumbers(int count) {
+            if (count < 0)
+                throw new IllegalArgumentException("Invalid count: " + count);
+            double[] numbers = new double[count];
+            for (int i = 0; i < count; i++)
+                numbers[i] = parseNumber(nextToken());
+            return numbers;
+        }
+
+        String nextString() {
+            int byteCount = nextInt();
+            skipSpaces();
+            if (position >= bytes.length || bytes[position] != '-' || byteCount < 0
+                    || position + 1 + byteCount > bytes.length)
+                throw new IllegalArgumentException("Invalid string in xdot operations");
+            String result = new String(bytes, position + 1, byteCount, StandardCharsets.UTF_8);
+            position += 1 + byteCount;
+            return result;
+        }
+    }
+}
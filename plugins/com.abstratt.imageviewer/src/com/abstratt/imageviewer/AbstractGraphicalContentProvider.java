@@ -2,12 +2,16 @@ package com.abstratt.imageviewer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 import org.apache.commons.io.FileUtils;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.ISchedulingRule;
 import org.eclipse.core.runtime.jobs.Job;
@@ -21,16 +25,69 @@ import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.widgets.Display;
 
 import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 public abstract class AbstractGraphicalContentProvider implements IGraphicalContentProvider {
 
+    /**
+     * Suggested sizes are rounded down to multiples of this, so resizing a
+     * little does not require a new image.
+     */
+    private static final int SIZE_BUCKET = 64;
+
+    /** How many images rendered for other sizes are kept for reuse. */
+    private static final int RENDERED_IMAGES_LIMIT = 4;
+
     private Image image;
 
+    /** The (rounded) size the current image was rendered for. */
+    private Point imageSize;
+
     private Point suggestedSize;
 
+    /** Whether the current image is an error image. */
+    private volatile boolean failed;
+
+    /**
+     * Images rendered for the current input, keyed by the (rounded) size they
+     * were rendered for. Only touched from the UI thread.
+     */
+    private final Map<Point, Image> renderedImages = new LinkedHashMap<Point, Image>(8, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Point, Image> eldest) {
+            if (size() <= RENDERED_IMAGES_LIMIT)
+                return false;
+            if (eldest.getValue() != image)
+                eldest.getValue().dispose();
+            return true;
+        }
+    };
+
     private ContentLoader loaderJob = new ContentLoader();
 
-    public final static ISchedulingRule CONTENT_LOADING_RULE = new ISchedulingRule() {
+    private PreviewLoader previewJob = new PreviewLoader();
+
+    /**
+     * @deprecated rendering jobs no longer share a single global rule, use a
+     *             {@link ContentLoadingRule} for the specific target instead
+     */
+    @Deprecated
+    public final static ISchedulingRule CONTENT_LOADING_RULE = new ContentLoadingRule(new Object());
+
+    /**
+     * A scheduling rule that serializes jobs that work on behalf of the same
+     * target (a viewer, an output location), while letting jobs for different
+     * targets run concurrently (how many dot processes actually run at the
+     * same time is up to the renderer).
+     */
+    public static class ContentLoadingRule implements ISchedulingRule {
+        private final Object target;
+
+        public ContentLoadingRule(Object target) {
+            this.target = target;
+        }
 
         /*
          * (non-Javadoc)
@@ -51,10 +108,9 @@ public abstract class AbstractGraphicalContentProvider implements IGraphicalCont
          * .core.runtime.jobs.ISchedulingRule)
          */
         public boolean isConflicting(ISchedulingRule rule) {
-            return rule == this;
+            return rule instanceof ContentLoadingRule && ((ContentLoadingRule) rule).target.equals(target);
         }
-
-    };
+    }
 
     class ContentLoader extends Job {
 
@@ -72,51 +128,162 @@ public abstract class AbstractGraphicalContentProvider implements IGraphicalCont
         @Override
         protected IStatus run(final IProgressMonitor monitor) {
             monitor.beginTask("loading image", 100);
-            getJobManager().beginRule(CONTENT_LOADING_RULE, monitor);
+            // loads for the same viewer happen in the order they were requested
+            ISchedulingRule rule = new ContentLoadingRule(getTarget());
+            getJobManager().beginRule(rule, monitor);
             try {
                 if (monitor.isCanceled())
                     return Status.CANCEL_STATUS;
-                disposeImage();
                 monitor.worked(50);
+                final Point size = toSizeBucket(getSuggestedSize());
+                Image result;
+                boolean error = false;
+                long start = System.nanoTime();
                 try {
-                    setImage(AbstractGraphicalContentProvider.this.loadImage(Display.getDefault(), getSuggestedSize(),
-                            input));
+                    result = AbstractGraphicalContentProvider.this.loadImage(Display.getDefault(), size, input,
+                            monitor);
+                    Metrics.timer("viewer.load").recordSince(start);
+                } catch (OperationCanceledException e) {
+                    // superseded by a newer request
+                    Metrics.counter("viewer.cancellations").increment();
+                    return Status.CANCEL_STATUS;
                 } catch (CoreException e) {
+                    Metrics.counter("viewer.loadFailures").increment();
                     if (!e.getStatus().isOK())
                         LogUtils.log(e.getStatus());
-                    setImage(createErrorImage(Display.getDefault(), getSuggestedSize(), e.getStatus()));
+                    result = createErrorImage(Display.getDefault(), size != null ? size : new Point(400, 300),
+                            e.getStatus());
+                    error = true;
                 }
-                if (monitor.isCanceled())
-                    return Status.CANCEL_STATUS;
+                final Image loaded = result;
+                final boolean failed = error;
                 monitor.worked(20);
+                // the current image stays in place until its replacement is
+                // ready, and is only ever swapped in the UI thread
                 Display.getDefault().syncExec(new Runnable() {
                     public void run() {
-                        if (monitor.isCanceled())
+                        if (monitor.isCanceled()) {
+                            if (loaded != null)
+                                loaded.dispose();
                             return;
+                        }
+                        // any preview still being loaded would come too late
+                        previewJob.cancel();
+                        // error images are not worth keeping around
+                        Image replaced = loaded != null && !failed ? renderedImages.put(size, loaded) : null;
+                        setImage(loaded);
+                        imageSize = size;
+                        AbstractGraphicalContentProvider.this.failed = failed;
+                        if (replaced != null && replaced != loaded && !replaced.isDisposed())
+                            replaced.dispose();
                         monitor.worked(20);
+                        long start = System.nanoTime();
                         if (viewer != null)
                             viewer.refresh();
+                        Metrics.timer("viewer.refresh").recordSince(start);
                     }
                 });
             } finally {
-                getJobManager().endRule(CONTENT_LOADING_RULE);
+                getJobManager().endRule(rule);
                 monitor.done();
             }
             return Status.OK_STATUS;
         }
 
         public boolean belongsTo(Object family) {
-            return JOB_FAMILY.equals(family);
+            return JOB_FAMILY.equals(family) || getTarget() == family;
+        }
+
+        private Object getTarget() {
+            Viewer currentViewer = viewer;
+            return currentViewer != null ? currentViewer : AbstractGraphicalContentProvider.this;
         }
 
         private void asyncLoadImage(Object input, Viewer viewer) {
-            // first cancel any competing image loading jobs
-            getJobManager().cancel(JOB_FAMILY);
+            // first cancel any competing image loading jobs for the same viewer
+            getJobManager().cancel(viewer);
+            cancel();
+            previewJob.cancel();
             this.input = input;
             if (viewer.getControl().isDisposed() || !viewer.getControl().isVisible())
                 return;
             this.viewer = viewer;
             schedule(IMAGE_LOAD_DELAY);
+            previewJob.asyncLoadPreview(input, viewer);
+        }
+
+        private boolean hasInput() {
+            return input != null;
+        }
+    }
+
+    /**
+     * Loads a preview of a new input (see
+     * {@link AbstractGraphicalContentProvider#loadPreviewImage(Display, Point, Object, IProgressMonitor)}),
+     * concurrently with the content loader. The preview is shown only if it
+     * is ready before the actual image, and its loading is cancelled as soon
+     * as the actual image is shown.
+     */
+    class PreviewLoader extends Job {
+        private Object input;
+        private Viewer viewer;
+
+        public PreviewLoader() {
+            super("Image preview loading job");
+            setSystem(true);
+            setPriority(Job.INTERACTIVE);
+        }
+
+        @Override
+        protected IStatus run(final IProgressMonitor monitor) {
+            final Object previewed = input;
+            final Viewer target = viewer;
+            if (monitor.isCanceled())
+                return Status.CANCEL_STATUS;
+            Point size = toSizeBucket(getSuggestedSize());
+            Image result;
+            long start = System.nanoTime();
+            try {
+                result = loadPreviewImage(Display.getDefault(), size, previewed, monitor);
+            } catch (OperationCanceledException e) {
+                Metrics.counter("viewer.previewCancellations").increment();
+                return Status.CANCEL_STATUS;
+            } catch (CoreException e) {
+                // the actual image will tell what went wrong
+                LogUtils.debug(Activator.PLUGIN_ID, "Could not load preview: " + e.getStatus().getMessage());
+                return Status.OK_STATUS;
+            }
+            if (result == null)
+                return Status.OK_STATUS;
+            Metrics.timer("viewer.preview").recordSince(start);
+            final Image preview = result;
+            Display.getDefault().syncExec(new Runnable() {
+                public void run() {
+                    // the content loader cancels us once the actual image is in
+                    if (monitor.isCanceled() || previewed != loaderJob.input) {
+                        Metrics.counter("viewer.previewsDiscarded").increment();
+                        preview.dispose();
+                        return;
+                    }
+                    Metrics.counter("viewer.previewsShown").increment();
+                    setImage(preview);
+                    // so resizing does not take the preview for the real thing
+                    imageSize = null;
+                    if (target != null)
+                        target.refresh();
+                }
+            });
+            return Status.OK_STATUS;
+        }
+
+        public boolean belongsTo(Object family) {
+            return ContentLoader.JOB_FAMILY.equals(family) || (viewer != null && viewer == family);
+        }
+
+        private void asyncLoadPreview(Object input, Viewer viewer) {
+            this.input = input;
+            this.viewer = viewer;
+            schedule(ContentLoader.IMAGE_LOAD_DELAY);
         }
     }
 
@@ -127,12 +294,15 @@ public abstract class AbstractGraphicalContentProvider implements IGraphicalCont
      */
     public void dispose() {
         this.loaderJob.cancel();
+        this.previewJob.cancel();
         disposeImage();
     }
 
     public void setImage(Image newImage) {
-        disposeImage();
+        Image oldImage = image;
         this.image = newImage;
+        if (oldImage != null && oldImage != newImage && !renderedImages.containsValue(oldImage))
+            oldImage.dispose();
     }
 
     public Image createErrorImage(Display display, Point size, IStatus status) {
@@ -159,10 +329,13 @@ public abstract class AbstractGraphicalContentProvider implements IGraphicalCont
     }
 
     private void disposeImage() {
-        if (image == null)
-            return;
-        image.dispose();
+        if (image != null && !renderedImages.containsValue(image))
+            image.dispose();
         image = null;
+        imageSize = null;
+        for (Image rendered : renderedImages.values())
+            rendered.dispose();
+        renderedImages.clear();
     }
 
     public final Image getImage() {
@@ -175,20 +348,93 @@ public abstract class AbstractGraphicalContentProvider implements IGraphicalCont
 
     public final void inputChanged(final Viewer viewer, Object oldInput, final Object newInput) {
         disposeImage();
+        failed = false;
         if (newInput != null)
             loaderJob.asyncLoadImage(newInput, viewer);
     }
 
+    @Override
+    public boolean isFailed() {
+        return failed;
+    }
+
     public void setSuggestedSize(Point suggestedSize) {
         this.suggestedSize = suggestedSize;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The current image is kept (the viewer scales it down as needed) until
+     * one for the new size is available. Images already rendered for the
+     * current input at a similar size are reused instead of loading a new
+     * one.
+     */
+    public boolean resized(Point newSize) {
+        setSuggestedSize(newSize);
+        Point size = toSizeBucket(newSize);
+        if (!loaderJob.hasInput() || (image != null && Objects.equals(size, imageSize)))
+            return true;
+        Image rendered = renderedImages.get(size);
+        loaderJob.cancel();
+        if (rendered != null) {
+            Metrics.counter("viewer.resizeHits").increment();
+            setImage(rendered);
+            imageSize = size;
+        } else {
+            Metrics.counter("viewer.resizeLoads").increment();
+            loaderJob.schedule();
+        }
+        return true;
+    }
+
+    /**
+     * Rounds the given size down to the nearest size bucket, so sizes that
+     * differ only slightly share the same image.
+     */
+    private static Point toSizeBucket(Point size) {
+        if (size == null || size.x <= SIZE_BUCKET || size.y <= SIZE_BUCKET)
+            return size;
+        return new Point(size.x / SIZE_BUCKET * SIZE_BUCKET, size.y / SIZE_BUCKET * SIZE_BUCKET);
+    }
+
     protected void reload() {
         this.loaderJob.schedule(200);
     }
 
     public abstract Image loadImage(Display display, Point suggestedSize, Object newInput) throws CoreException;
 
+    /**
+     * Loads an image on behalf of a background job. Subclasses that do
+     * expensive work should override this and give up as soon as the given
+     * monitor is cancelled, which happens when the image is no longer wanted.
+     * This default implementation ignores the monitor.
+     * 
+     * @throws OperationCanceledException
+     *             if loading was given up due to cancellation
+     */
+    protected Image loadImage(Display display, Point suggestedSize, Object newInput, IProgressMonitor monitor)
+            throws CoreException {
+        return loadImage(display, suggestedSize, newInput);
+    }
+
+    /**
+     * Loads a cheaper, rougher version of the image for the given input, to
+     * be shown while the actual image is loaded (both are loaded at the same
+     * time, on behalf of different background jobs). Subclasses whose images
+     * may take long to load can override this, and should give up as soon
+     * as the given monitor is cancelled, which happens when the actual image
+     * is ready first. This default implementation provides no preview.
+     * 
+     * @return the preview, or <code>null</code> if none is worth showing
+     * @throws OperationCanceledException
+     *             if loading was given up due to cancellation
+     */
+    protected Image loadPreviewImage(Display display, Point suggestedSize, Object input, IProgressMonitor monitor)
+            throws CoreException {
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      * 
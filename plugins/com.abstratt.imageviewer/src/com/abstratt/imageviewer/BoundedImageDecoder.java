@@ -0,0 +1,376 @@
+package com.abstratt.imageviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.Point;
+
+import com.abstratt.pluginutils.ConfigUtils;
+import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
+
+/**
+ * Decodes images for display without ever producing more pixels than needed.
+ * Images much larger than the size they will be shown at, or larger than the
+ * pixel budget (see {@link #MAX_PIXELS}), are downsampled while they are
+ * decoded. 8-bit non-interlaced PNGs (what dot produces) are decoded a row at
+ * a time, averaging rows and columns into the smaller image, so the full size
+ * image never exists in memory. Other images are decoded in full and then
+ * scaled.
+ */
+public class BoundedImageDecoder {
+    /**
+     * Name of the system property (or environment variable) that sets the
+     * maximum number of pixels in a decoded image.
+     */
+    public static final String MAX_PIXELS = "com.abstratt.imageviewer.maxImagePixels"; //$NON-NLS-1$
+
+    /** 16 million pixels, or 64MB at 32 bits per pixel. */
+    public static final long DEFAULT_MAX_PIXELS = 16L * 1024 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    /**
+     * Decodes the given image, downsampling it if it is more than twice as
+     * large (in pixels) as the given size, or if it exceeds the pixel budget.
+     *
+     * @param targetSize
+     *            the size the image will be shown at, or <code>null</code>
+     *            (or zero) if it will be shown at its natural size
+     */
+    public static ImageData decode(byte[] contents, Point targetSize) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents));
+        int[] header = readHeader(input);
+        if (header == null)
+            return limit(new ImageLoader().load(new ByteArrayInputStream(contents))[0], targetSize);
+        int width = header[0];
+        int height = header[1];
+        Point size = computeSize(width, height, targetSize);
+        if (size.x == width && size.y == height)
+            return new ImageLoader().load(new ByteArrayInputStream(contents))[0];
+        int bitDepth = header[2];
+        int colorType = header[3];
+        int interlace = header[4];
+        if (bitDepth != 8 || interlace != 0 || getChannels(colorType) == 0)
+            return limit(new ImageLoader().load(new ByteArrayInputStream(contents))[0], targetSize);
+        Metrics.counter("viewer.downsampledImages").increment();
+        return decodeDownsampled(input, width, height, colorType, size);
+    }
+
+    /**
+     * Returns the maximum number of pixels in a decoded image.
+     */
+    public static long getMaxPixels() {
+        String configured = ConfigUtils.get(MAX_PIXELS);
+        if (configured != null)
+            try {
+                return Math.max(1, Long.parseLong(configured.trim()));
+            } catch (NumberFormatException e) {
+                LogUtils.logWarning(Activator.PLUGIN_ID, "Invalid value for " + MAX_PIXELS + ": " + configured, null);
+            }
+        return DEFAULT_MAX_PIXELS;
+    }
+
+    /**
+     * Works out the size an image should be decoded at. Images only slightly
+     * larger than the target size are left alone, as scaling them on display
+     * is cheap.
+     */
+    static Point computeSize(int width, int height, Point targetSize) {
+        double scale = 1;
+        if (targetSize != null && targetSize.x > 0 && targetSize.y > 0) {
+            double fitScale = Math.min((double) targetSize.x / width, (double) targetSize.y / height);
+            if (fitScale * fitScale < 0.5)
+                scale = fitScale;
+        }
+        long maxPixels = getMaxPixels();
+        if ((double) width * height * scale * scale > maxPixels)
+            scale = Math.sqrt((double) maxPixels / ((double) width * height));
+        if (scale >= 1)
+            return new Point(width, height);
+        return new Point(Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)));
+    }
+
+    /**
+     * Scales an image that was decoded in full down to the size it should
+     * have, if needed.
+     */
+    private static ImageData limit(ImageData imageData, Point targetSize) {
+        Point size = computeSize(imageData.width, imageData.height, targetSize);
+        if (size.x == imageData.width && size.y == imageData.height)
+            return imageData;
+        Metrics.counter("viewer.downsampledImages").increment();
+        return imageData.scaledTo(size.x, size.y);
+    }
+
+    /**
+     * Reads the PNG signature and header, returning the width, height, bit
+     * depth, color type and interlace method, or <code>null</code> if this
+     * is not a PNG image.
+     */
+    private static int[] readHeader(DataInputStream input) throws IOException {
+        byte[] signature = new byte[PNG_SIGNATURE.length];
+        try {
+            input.readFully(signature);
+            for (int i = 0; i < signature.length; i++)
+                if (signature[i] != PNG_SIGNATURE[i])
+                    return null;
+            int length = input.readInt();
+            if (input.readInt() != IHDR || length != 13)
+                return null;
+            int[] header = { input.readInt(), input.readInt(), input.readUnsignedByte(), input.readUnsignedByte(), 0 };
+            // compression and filter methods
+            input.skipBytes(2);
+            header[4] = input.readUnsignedByte();
+            // CRC
+            input.skipBytes(4);
+            return header[0] > 0 && header[1] > 0 ? header : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes per pixel for the given color type (at 8
+     * bits per sample), or 0 if the color type is not known.
+     */
+    private static int getChannels(int colorType) {
+        switch (colorType) {
+        case 0:
+            // grayscale
+            return 1;
+        case 2:
+            // RGB
+            return 3;
+        case 3:
+            // palette
+            return 1;
+        case 4:
+            // grayscale and alpha
+            return 2;
+        case 6:
+            // RGBA
+            return 4;
+        }
+        return 0;
+    }
+
+    private static ImageData decodeDownsampled(DataInputStream input, int width, int height, int colorType,
+            Point size) throws IOException {
+        byte[] palette = null;
+        byte[] paletteAlpha = null;
+        int length;
+        // ancillary chunks up to the image data
+        while (true) {
+            length = input.readInt();
+            int type = input.readInt();
+            if (type == IDAT)
+                break;
+            if (type == IEND)
+                throw new IOException("No image data");
+            byte[] data = new byte[length];
+            input.readFully(data);
+            input.skipBytes(4);
+            if (type == PLTE)
+                palette = data;
+            else if (type == TRNS)
+                paletteAlpha = data;
+        }
+        if (colorType == 3 && palette == null)
+            throw new IOException("Missing palette");
+        InputStream rows = new InflaterInputStream(new ImageDataInputStream(input, length));
+        int channels = getChannels(colorType);
+        byte[] previous = new byte[width * channels];
+        byte[] current = new byte[previous.length];
+        int outputWidth = size.x;
+        int outputHeight = size.y;
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++)
+            columns[x] = (int) ((long) x * outputWidth / width);
+        // premultiplied color and alpha sums, per output column
+        long[] sums = new long[outputWidth * 4];
+        int[] counts = new int[outputWidth];
+        int[] pixels = new int[outputWidth];
+        byte[] alphaData = new byte[outputWidth * outputHeight];
+        boolean translucent = false;
+        ImageData result = new ImageData(outputWidth, outputHeight, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+        for (int y = 0; y < height; y++) {
+            int filter = rows.read();
+            if (filter < 0)
+                throw new EOFException();
+            readFully(rows, current);
+            unfilter(filter, current, previous, channels);
+            for (int x = 0, offset = 0; x < width; x++, offset += channels) {
+                int red, green, blue, alpha = 0xFF;
+                switch (colorType) {
+                case 0:
+                case 4:
+                    red = green = blue = current[offset] & 0xFF;
+                    if (colorType == 4)
+                        alpha = current[offset + 1] & 0xFF;
+                    break;
+                case 3:
+                    int index = current[offset] & 0xFF;
+                    if (3 * index + 2 >= palette.length)
+                        throw new IOException("Invalid palette index");
+                    red = palette[3 * index] & 0xFF;
+                    green = palette[3 * index + 1] & 0xFF;
+                    blue = palette[3 * index + 2] & 0xFF;
+                    if (paletteAlpha != null && index < paletteAlpha.length)
+                        alpha = paletteAlpha[index] & 0xFF;
+                    break;
+                default:
+                    red = current[offset] & 0xFF;
+                    green = current[offset + 1] & 0xFF;
+                    blue = current[offset + 2] & 0xFF;
+                    if (colorType == 6)
+                        alpha = current[offset + 3] & 0xFF;
+                }
+                int column = columns[x];
+                sums[4 * column] += red * alpha;
+                sums[4 * column + 1] += green * alpha;
+                sums[4 * column + 2] += blue * alpha;
+                sums[4 * column + 3] += alpha;
+                counts[column]++;
+            }
+            int outputRow = (int) ((long) y * outputHeight / height);
+            int nextOutputRow = (int) ((long) (y + 1) * outputHeight / height);
+            if (nextOutputRow != outputRow || y == height - 1) {
+                // all source rows for this output row have been seen
+                for (int column = 0; column < outputWidth; column++) {
+                    long alphaSum = sums[4 * column + 3];
+                    int alpha = counts[column] == 0 ? 0 : (int) (alphaSum / counts[column]);
+                    if (alphaSum == 0)
+                        pixels[column] = 0xFFFFFF;
+                    else
+                        pixels[column] = (int) (sums[4 * column] / alphaSum) << 16
+                                | (int) (sums[4 * column + 1] / alphaSum) << 8 | (int) (sums[4 * column + 2] / alphaSum);
+                    alphaData[outputRow * outputWidth + column] = (byte) alpha;
+                    translucent |= alpha < 0xFF;
+                }
+                result.setPixels(0, outputRow, outputWidth, pixels, 0);
+                Arrays.fill(sums, 0);
+                Arrays.fill(counts, 0);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        if (translucent)
+            result.alphaData = alphaData;
+        return result;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        for (int read = 0; read < buffer.length;) {
+            int count = input.read(buffer, read, buffer.length - read);
+            if (count < 0)
+                throw new EOFException();
+            read += count;
+        }
+    }
+
+    /**
+     * Reverses the PNG filter applied to a row, in place.
+     */
+    private static void unfilter(int filter, byte[] row, byte[] previous, int bytesPerPixel) throws IOException {
+        switch (filter) {
+        case 0:
+            // none
+            break;
+        case 1:
+            // sub
+            for (int i = bytesPerPixel; i < row.length; i++)
+                row[i] += row[i - bytesPerPixel];
+            break;
+        case 2:
+            // up
+            for (int i = 0; i < row.length; i++)
+                row[i] += previous[i];
+            break;
+        case 3:
+            // average
+            for (int i = 0; i < row.length; i++) {
+                int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                row[i] += (left + (previous[i] & 0xFF)) / 2;
+            }
+            break;
+        case 4:
+            // Paeth
+            for (int i = 0; i < row.length; i++) {
+                int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                int above = previous[i] & 0xFF;
+                int aboveLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+                int estimate = left + above - aboveLeft;
+                int toLeft = Math.abs(estimate - left);
+                int toAbove = Math.abs(estimate - above);
+                int toAboveLeft = Math.abs(estimate - aboveLeft);
+                int predictor = toLeft <= toAbove && toLeft <= toAboveLeft ? left : toAbove <= toAboveLeft ? above
+                        : aboveLeft;
+                row[i] += predictor;
+            }
+            break;
+        default:
+            throw new IOException("Invalid filter type: " + filter);
+        }
+    }
+
+    /**
+     * The compressed image data, which may span several consecutive IDAT
+     * chunks.
+     */
+    private static class ImageDataInputStream extends InputStream {
+        private final DataInputStream input;
+        private int remaining;
+        private boolean ended;
+
+        ImageDataInputStream(DataInputStream input, int firstChunkLength) {
+            this.input = input;
+            this.remaining = firstChunkLength;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !ended) {
+                // CRC of the previous chunk
+                input.skipBytes(4);
+                remaining = input.readInt();
+                ended = input.readInt() != IDAT;
+            }
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            remaining--;
+            return input.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+            int read = input.read(buffer, offset, Math.min(length, remaining));
+            if (read < 0)
+                throw new EOFException();
+            remaining -= read;
+            return read;
+        }
+    }
+}
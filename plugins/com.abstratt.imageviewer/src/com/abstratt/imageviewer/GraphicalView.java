@@ -1,6 +1,10 @@
 package com.abstratt.imageviewer;
 
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceChangeEvent;
 import org.eclipse.core.resources.IResourceChangeListener;
 import org.eclipse.core.resources.IResourceDelta;
@@ -26,12 +30,20 @@ import org.eclipse.ui.part.ViewPart;
 
 import com.abstratt.content.ContentSupport;
 import com.abstratt.content.IContentProviderRegistry.IProviderDescription;
+import com.abstratt.pluginutils.LogUtils;
+import com.abstratt.pluginutils.Metrics;
 
 /**
  * A view that wraps a {@link GraphicalViewer}.
  */
 public class GraphicalView extends ViewPart implements IResourceChangeListener, IPartListener2, ISelectionListener {
     public final static String VIEW_ID = "com.abstratt.imageviewer.GraphicalView";
+    /**
+     * How long (in milliseconds) update requests must stop coming before an
+     * update actually happens. Switching editors or saving often causes
+     * several requests in a row, which are collapsed into a single update.
+     */
+    private static final int UPDATE_QUIET_PERIOD = 150;
     private Canvas canvas;
     private GraphicalViewer viewer;
     private String basePartName;
@@ -42,6 +54,32 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
      * selection/selected object.
      */
     private boolean autoSync = true;
+    /**
+     * The file currently shown and its modification stamp when it was read.
+     */
+    private IFile shownFile;
+    private long shownModificationStamp = IResource.NULL_STAMP;
+
+    private final AtomicLong updatesRequested = new AtomicLong();
+    private final AtomicLong updatesExecuted = new AtomicLong();
+    private final AtomicLong updatesSkipped = new AtomicLong();
+
+    private final Runnable updater = new Runnable() {
+        public void run() {
+            if (canvas == null || canvas.isDisposed() || getSite() == null
+                    || !GraphicalView.this.getSite().getPage().isPartVisible(GraphicalView.this))
+                // don't do anything if we are not showing
+                return;
+            reload(selectedFile);
+        }
+    };
+
+    private final Runnable updateScheduler = new Runnable() {
+        public void run() {
+            // re-arms the timer if an update is already pending
+            Display.getCurrent().timerExec(UPDATE_QUIET_PERIOD, updater);
+        }
+    };
 
     /**
      * The constructor.
@@ -70,6 +108,8 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
 
     @Override
     public void dispose() {
+        LogUtils.debug(Activator.PLUGIN_ID, "Image viewer updates: " + updatesRequested + " requested, "
+                + updatesExecuted + " executed, " + updatesSkipped + " skipped");
         ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
         getSite().getPage().removePartListener(this);
         getSite().getWorkbenchWindow().getSelectionService().removeSelectionListener(this);
@@ -109,8 +149,8 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
         if (structured.size() != 1)
             return;
         Object selected = structured.getFirstElement();
-        IFile file = (IFile) Platform.getAdapterManager().getAdapter(selected, IFile.class);
-        reload(file);
+        selectedFile = (IFile) Platform.getAdapterManager().getAdapter(selected, IFile.class);
+        requestUpdate();
     }
 
     public void partActivated(IWorkbenchPartReference partRef) {
@@ -171,15 +211,17 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
     }
 
     private void reload(IFile file) {
+        if (file != null && file.equals(shownFile) && file.exists()
+                && file.getModificationStamp() == shownModificationStamp && isShownSuccessfully()) {
+            // already showing this exact file contents
+            updatesSkipped.incrementAndGet();
+            return;
+        }
         setPartName(basePartName);
         this.providerDefinition = null;
         this.selectedFile = null;
         if (file == null || !file.exists())
             return;
-        if (viewer.getContentProvider() != null)
-            // to avoid one provider trying to interpret an
-            // incompatible input
-            viewer.setInput(null);
         IContentDescription contentDescription = null;
         try {
             contentDescription = file.getContentDescription();
@@ -194,14 +236,40 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
         if (providerDefinition == null) {
             return;
         }
-        IGraphicalContentProvider provider = (IGraphicalContentProvider) providerDefinition.getProvider();
-        setContents(providerDefinition.read(file), provider);
+        long modificationStamp = file.getModificationStamp();
+        long start = System.nanoTime();
+        Object contents = providerDefinition.read(file);
+        Metrics.timer("viewer.read").recordSince(start);
+        if (file.equals(shownFile) && isShownSuccessfully() && Objects.deepEquals(contents, viewer.getInput())) {
+            // touched, or saved without changes
+            updatesSkipped.incrementAndGet();
+        } else {
+            if (viewer.getContentProvider() != null)
+                // to avoid one provider trying to interpret an
+                // incompatible input
+                viewer.setInput(null);
+            IGraphicalContentProvider provider = (IGraphicalContentProvider) providerDefinition.getProvider();
+            setContents(contents, provider);
+            updatesExecuted.incrementAndGet();
+        }
         // enables support for file rendering
         this.selectedFile = file;
         this.providerDefinition = providerDefinition;
+        this.shownFile = file;
+        this.shownModificationStamp = modificationStamp;
         setPartName(basePartName + " - " + file.getName());
     }
 
+    /**
+     * Returns whether there is something shown, and it did not fail to
+     * render (failures are worth trying again, as their cause may have been
+     * fixed, for instance in the preferences).
+     */
+    private boolean isShownSuccessfully() {
+        IGraphicalContentProvider provider = getContentProvider();
+        return viewer.getInput() != null && provider != null && !provider.isFailed();
+    }
+
     /**
      * Force feeds the contents to be shown.
      * 
@@ -216,6 +284,7 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
         // assumes the general case (instead of file rendering)
         selectedFile = null;
         providerDefinition = null;
+        shownFile = null;
         viewer.setContentProvider(provider);
         viewer.setInput(contents);
         setPartName(basePartName);
@@ -229,15 +298,37 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
         return (IGraphicalContentProvider) viewer.getContentProvider();
     }
 
+    /**
+     * Requests the view to be updated. Requests made in quick succession
+     * result in a single update, once they stop coming.
+     */
     private void requestUpdate() {
-        Display.getDefault().asyncExec(new Runnable() {
-            public void run() {
-                if (getSite() == null || !GraphicalView.this.getSite().getPage().isPartVisible(GraphicalView.this))
-                    // don't do anything if we are not showing
-                    return;
-                reload(selectedFile);
-            }
-        });
+        updatesRequested.incrementAndGet();
+        Display.getDefault().asyncExec(updateScheduler);
+    }
+
+    /**
+     * Returns how many times this view was asked to update itself.
+     */
+    public long getUpdatesRequested() {
+        return updatesRequested.get();
+    }
+
+    /**
+     * Returns how many times this view actually rendered new contents. The
+     * difference to {@link #getUpdatesRequested()} are requests that were
+     * either coalesced or skipped (see {@link #getUpdatesSkipped()}).
+     */
+    public long getUpdatesExecuted() {
+        return updatesExecuted.get();
+    }
+
+    /**
+     * Returns how many updates were skipped because the file shown had not
+     * changed.
+     */
+    public long getUpdatesSkipped() {
+        return updatesSkipped.get();
     }
 
     public void resourceChanged(IResourceChangeEvent event) {
@@ -298,4 +389,11 @@ public class GraphicalView extends ViewPart implements IResourceChangeListener,
     public void toggleSync() {
         setAutoSync(!isAutoSync());
     }
+
+    /**
+     * Toggles between showing images fit to the view and zooming/panning.
+     */
+    public void toggleZoom() {
+        viewer.setZoomMode(!viewer.isZoomMode());
+    }
 }
\ No newline at end of file
@@ -7,6 +7,8 @@ import org.eclipse.jface.viewers.ContentViewer;
 import org.eclipse.jface.viewers.IContentProvider;
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.GC;
@@ -19,35 +21,140 @@ import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
 
+import com.abstratt.pluginutils.Metrics;
+
 /**
  * A viewer that knows how to display graphical contents.
+ * <p>
+ * By default, images are rendered to fit the viewer. In zoom mode, images are
+ * rendered at their natural size instead, and shown at one of a number of
+ * discrete zoom levels (each twice the scale of the previous one), which can
+ * be changed with the mouse wheel, while dragging pans the image around.
+ * Double-clicking goes back to the zoom level that fits the whole image. In
+ * that mode, the image is painted in tiles produced on demand for the current
+ * zoom level and kept around (up to a limit) for reuse, so painting only
+ * costs as much as the visible area, no matter how large the image is.
+ * </p>
  * 
  * @see IGraphicalContentProvider
  */
 public class GraphicalViewer extends ContentViewer {
 
+    /** Width and height of tiles, in pixels. */
+    private static final int TILE_SIZE = 256;
+    /** How many tiles to keep around, unless more are visible at once. */
+    private static final int TILE_CACHE_CAPACITY = 64;
+    /**
+     * How long resizing must have stopped for before images are rendered for
+     * the new size, in milliseconds.
+     */
+    private static final int RESIZE_SETTLE_DELAY = 300;
+    /** Zoom levels, as powers of two. */
+    private static final int MIN_ZOOM_LEVEL = -8;
+    private static final int MAX_ZOOM_LEVEL = 3;
+
     private Canvas canvas;
 
     private boolean adjustToCanvas = true;
 
     private boolean imageRedrawRequested;
 
+    private boolean zoomMode;
+
+    private int zoomLevel;
+
+    /** The point of the zoomed image shown at the top left corner. */
+    private Point origin = new Point(0, 0);
+
+    private final TileCache tiles = new TileCache(TILE_CACHE_CAPACITY);
+
+    /** The image the current tiles were produced from. */
+    private Image tiledImage;
+
+    /** Where the mouse was pressed for panning, if it is being dragged. */
+    private Point dragStart;
+
+    /**
+     * Tells the content provider about the new size. Postponed (and
+     * rescheduled) while the viewer keeps being resized.
+     */
+    private final Runnable resizeSettled = new Runnable() {
+        public void run() {
+            if (canvas.isDisposed() || !adjustToCanvas)
+                return;
+            notifyResized(canvas.getSize());
+            canvas.redraw();
+        }
+    };
+
     public GraphicalViewer(Composite parent) {
-        canvas = new Canvas(parent, SWT.NONE);
+        canvas = new Canvas(parent, SWT.NO_BACKGROUND);
         parent.addListener(SWT.Resize, new Listener() {
             public void handleEvent(Event event) {
                 canvas.setBounds(canvas.getParent().getClientArea());
-                requestImageRedraw();
+                // images are rendered at their natural size in zoom mode
+                if (adjustToCanvas) {
+                    // the current image is scaled down to fit meanwhile
+                    canvas.getDisplay().timerExec(RESIZE_SETTLE_DELAY, resizeSettled);
+                    canvas.redraw();
+                } else
+                    setOrigin(origin.x, origin.y);
             }
         });
         canvas.addPaintListener(new PaintListener() {
             public void paintControl(PaintEvent e) {
                 redrawImageIfRequested();
                 GC gc = e.gc;
-                paintCanvas(gc);
+                long start = System.nanoTime();
+                gc.fillRectangle(e.x, e.y, e.width, e.height);
+                if (zoomMode)
+                    paintTiles(gc, new Rectangle(e.x, e.y, e.width, e.height));
+                else
+                    paintCanvas(gc);
+                Metrics.timer("viewer.paint").recordSince(start);
             }
 
         });
+        canvas.addDisposeListener(new DisposeListener() {
+            public void widgetDisposed(DisposeEvent e) {
+                tiles.clear();
+            }
+        });
+        installZoomListeners();
+    }
+
+    private void installZoomListeners() {
+        canvas.addListener(SWT.MouseWheel, new Listener() {
+            public void handleEvent(Event event) {
+                if (zoomMode && event.count != 0)
+                    zoom(event.count > 0 ? 1 : -1, event.x, event.y);
+            }
+        });
+        canvas.addListener(SWT.MouseDown, new Listener() {
+            public void handleEvent(Event event) {
+                if (zoomMode && event.button == 1)
+                    dragStart = new Point(event.x, event.y);
+            }
+        });
+        canvas.addListener(SWT.MouseUp, new Listener() {
+            public void handleEvent(Event event) {
+                dragStart = null;
+            }
+        });
+        canvas.addListener(SWT.MouseMove, new Listener() {
+            public void handleEvent(Event event) {
+                if (!zoomMode || dragStart == null)
+                    return;
+                setOrigin(origin.x - (event.x - dragStart.x), origin.y - (event.y - dragStart.y));
+                dragStart = new Point(event.x, event.y);
+            }
+        });
+        canvas.addListener(SWT.MouseDoubleClick, new Listener() {
+            public void handleEvent(Event event) {
+                if (zoomMode)
+                    zoomToFit();
+            }
+        });
     }
 
     public Canvas getCanvas() {
@@ -99,6 +206,201 @@ public class GraphicalViewer extends ContentViewer {
         return adjustToCanvas;
     }
 
+    public boolean isZoomMode() {
+        return zoomMode;
+    }
+
+    /**
+     * Turns zoom mode on or off. Images are rendered again, at their natural
+     * size in zoom mode (or smaller, for providers painting what is shown at
+     * any scale, see {@link IScalableGraphicalContentProvider}), to fit the
+     * viewer otherwise.
+     */
+    public void setZoomMode(boolean zoomMode) {
+        if (this.zoomMode == zoomMode)
+            return;
+        this.zoomMode = zoomMode;
+        discardTiles();
+        setAdjustToCanvas(!zoomMode);
+        refresh();
+    }
+
+    /**
+     * Returns the current zoom level, as a power of two (0 meaning the
+     * natural size).
+     */
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * Returns the scale the image is shown at, relative to its size.
+     */
+    private double getScale() {
+        return Math.pow(2, zoomLevel) / getImageScale();
+    }
+
+    private double getImageScale() {
+        IContentProvider provider = getContentProvider();
+        if (!(provider instanceof IScalableGraphicalContentProvider))
+            return 1;
+        double imageScale = ((IScalableGraphicalContentProvider) provider).getImageScale();
+        return imageScale > 0 ? imageScale : 1;
+    }
+
+    /**
+     * Returns the size of the image as shown at the current zoom level.
+     */
+    private Point getZoomedSize(Image image) {
+        Rectangle imageBounds = image.getBounds();
+        double scale = getScale();
+        return new Point(Math.max(1, (int) Math.ceil(imageBounds.width * scale)), Math.max(1,
+                (int) Math.ceil(imageBounds.height * scale)));
+    }
+
+    /**
+     * Returns where the top left corner of the zoomed image goes in the
+     * canvas. Images smaller than the canvas are centered.
+     */
+    private Point getZoomedImageLocation(Point zoomedSize) {
+        Rectangle clientArea = canvas.getClientArea();
+        int x = zoomedSize.x < clientArea.width ? (clientArea.width - zoomedSize.x) / 2 : -origin.x;
+        int y = zoomedSize.y < clientArea.height ? (clientArea.height - zoomedSize.y) / 2 : -origin.y;
+        return new Point(x, y);
+    }
+
+    /**
+     * Changes the zoom level by the given number of steps, keeping the image
+     * point under the given canvas location where it is.
+     */
+    private void zoom(int steps, int canvasX, int canvasY) {
+        Image image = getImage();
+        int newZoomLevel = Math.max(MIN_ZOOM_LEVEL, Math.min(MAX_ZOOM_LEVEL, zoomLevel + steps));
+        if (image == null || image.isDisposed() || newZoomLevel == zoomLevel)
+            return;
+        Point location = getZoomedImageLocation(getZoomedSize(image));
+        double factor = Math.pow(2, newZoomLevel - zoomLevel);
+        zoomLevel = newZoomLevel;
+        setOrigin((int) ((canvasX - location.x) * factor) - canvasX, (int) ((canvasY - location.y) * factor)
+                - canvasY);
+        canvas.redraw();
+    }
+
+    /**
+     * Goes to the largest zoom level (not magnifying) that shows the whole
+     * image.
+     */
+    public void zoomToFit() {
+        Image image = getImage();
+        if (image == null || image.isDisposed())
+            return;
+        Rectangle imageBounds = image.getBounds();
+        Rectangle clientArea = canvas.getClientArea();
+        zoomLevel = 0;
+        while (zoomLevel > MIN_ZOOM_LEVEL
+                && (imageBounds.width * getScale() > clientArea.width || imageBounds.height * getScale() > clientArea.height))
+            zoomLevel--;
+        origin = new Point(0, 0);
+        canvas.redraw();
+    }
+
+    /**
+     * Scrolls the zoomed image so the given point of it is at the top left
+     * corner, as far as possible.
+     */
+    private void setOrigin(int x, int y) {
+        Image image = getImage();
+        if (image == null || image.isDisposed())
+            return;
+        Point zoomedSize = getZoomedSize(image);
+        Rectangle clientArea = canvas.getClientArea();
+        x = Math.max(0, Math.min(x, zoomedSize.x - clientArea.width));
+        y = Math.max(0, Math.min(y, zoomedSize.y - clientArea.height));
+        int deltaX = origin.x - x;
+        int deltaY = origin.y - y;
+        origin = new Point(x, y);
+        if (deltaX != 0 || deltaY != 0)
+            // moves what is already painted, only the exposed area gets painted
+            canvas.scroll(deltaX, deltaY, 0, 0, clientArea.width, clientArea.height, false);
+    }
+
+    /**
+     * Paints the tiles of the current zoom level that intersect the given
+     * area, producing the ones missing.
+     */
+    private void paintTiles(GC gc, Rectangle area) {
+        Image image = getImage();
+        if (image == null || image.isDisposed())
+            return;
+        if (image != tiledImage) {
+            // new contents
+            discardTiles();
+            tiledImage = image;
+            zoomToFit();
+        }
+        Point zoomedSize = getZoomedSize(image);
+        Point location = getZoomedImageLocation(zoomedSize);
+        Rectangle clientArea = canvas.getClientArea();
+        tiles.ensureCapacity(2 * ((clientArea.width / TILE_SIZE + 2) * (clientArea.height / TILE_SIZE + 2)));
+        int lastColumn = (zoomedSize.x - 1) / TILE_SIZE;
+        int lastRow = (zoomedSize.y - 1) / TILE_SIZE;
+        int firstVisibleColumn = Math.max(0, (area.x - location.x) / TILE_SIZE);
+        int lastVisibleColumn = Math.min(lastColumn, (area.x + area.width - 1 - location.x) / TILE_SIZE);
+        int firstVisibleRow = Math.max(0, (area.y - location.y) / TILE_SIZE);
+        int lastVisibleRow = Math.min(lastRow, (area.y + area.height - 1 - location.y) / TILE_SIZE);
+        for (int row = firstVisibleRow; row <= lastVisibleRow; row++)
+            for (int column = firstVisibleColumn; column <= lastVisibleColumn; column++) {
+                Image tile = tiles.get(zoomLevel, column, row);
+                if (tile == null)
+                    tiles.put(zoomLevel, column, row, tile = createTile(image, zoomedSize, column, row));
+                gc.drawImage(tile, location.x + column * TILE_SIZE, location.y + row * TILE_SIZE);
+            }
+    }
+
+    /**
+     * Produces the tile at the given position for the current zoom level, by
+     * having the content provider paint it if it can paint at any scale, or
+     * else by scaling the corresponding area of the image.
+     */
+    private Image createTile(Image image, Point zoomedSize, int column, int row) {
+        long start = System.nanoTime();
+        Rectangle imageBounds = image.getBounds();
+        double scale = getScale();
+        int x = column * TILE_SIZE;
+        int y = row * TILE_SIZE;
+        int width = Math.min(TILE_SIZE, zoomedSize.x - x);
+        int height = Math.min(TILE_SIZE, zoomedSize.y - y);
+        int sourceX = (int) Math.floor(x / scale);
+        int sourceY = (int) Math.floor(y / scale);
+        int sourceWidth = Math.max(1, Math.min(imageBounds.width - sourceX, (int) Math.ceil(width / scale)));
+        int sourceHeight = Math.max(1, Math.min(imageBounds.height - sourceY, (int) Math.ceil(height / scale)));
+        Image tile = new Image(canvas.getDisplay(), width, height);
+        GC gc = new GC(tile);
+        try {
+            gc.setBackground(canvas.getBackground());
+            gc.fillRectangle(0, 0, width, height);
+            IContentProvider provider = getContentProvider();
+            boolean painted = provider instanceof IScalableGraphicalContentProvider
+                    && ((IScalableGraphicalContentProvider) provider).paint(gc, scale, new Rectangle(x, y, width,
+                            height));
+            if (!painted) {
+                if (scale < 1)
+                    gc.setInterpolation(SWT.HIGH);
+                gc.drawImage(image, sourceX, sourceY, sourceWidth, sourceHeight, 0, 0,
+                        (int) Math.round(sourceWidth * scale), (int) Math.round(sourceHeight * scale));
+            }
+        } finally {
+            gc.dispose();
+        }
+        Metrics.timer("viewer.tileCreation").recordSince(start);
+        return tile;
+    }
+
+    private void discardTiles() {
+        tiles.clear();
+        tiledImage = null;
+    }
+
     private void paintCanvas(GC gc) {
         Image image = getImage();
         if (image == null || image.isDisposed())
@@ -146,9 +448,20 @@ public class GraphicalViewer extends ContentViewer {
         imageRedrawRequested = true;
     }
 
+    /**
+     * Lets the content provider know the size it should produce images for
+     * changed, falling back to a new provider instance if it cannot deal
+     * with that by itself.
+     */
+    private void notifyResized(Point newSize) {
+        IGraphicalContentProvider provider = (IGraphicalContentProvider) getContentProvider();
+        if (provider == null || !provider.resized(newSize))
+            requestImageRedraw();
+    }
+
     public void setAdjustToCanvas(boolean adjustToCanvas) {
         this.adjustToCanvas = adjustToCanvas;
-        requestImageRedraw();
+        notifyResized(adjustToCanvas && !canvas.isDisposed() ? canvas.getSize() : null);
     }
 
     @Override
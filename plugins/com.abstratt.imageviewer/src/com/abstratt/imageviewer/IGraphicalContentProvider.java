@@ -28,6 +28,30 @@ public interface IGraphicalContentProvider extends IContentProvider {
 
     public void setSuggestedSize(Point suggested);
 
+    /**
+     * Tells this provider the viewer it feeds was resized (once resizing has
+     * settled), so it can produce an image that suits the new size, or its
+     * natural size if the given size is <code>null</code>.
+     * 
+     * @return <code>true</code> if this provider took care of it, or
+     *         <code>false</code> if the viewer should start over with a new
+     *         provider instance, which is what this default implementation
+     *         asks for
+     */
+    default boolean resized(Point newSize) {
+        return false;
+    }
+
+    /**
+     * Returns whether the last attempt to produce an image for the current
+     * input failed, in which case it is worth trying again even if the input
+     * did not change (problems may have been fixed elsewhere, as in the
+     * preferences). This default implementation never reports failures.
+     */
+    default boolean isFailed() {
+        return false;
+    }
+
     /**
      * Returns an image produced from the given input. This method might be
      * invoked from a non-UI thread.
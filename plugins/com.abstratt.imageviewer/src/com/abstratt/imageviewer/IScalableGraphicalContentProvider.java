@@ -0,0 +1,31 @@
+package com.abstratt.imageviewer;
+
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Rectangle;
+
+/**
+ * A graphical content provider that can paint its contents at any scale, so
+ * zoomed in views stay sharp instead of showing a magnified image.
+ */
+public interface IScalableGraphicalContentProvider extends IGraphicalContentProvider {
+    /**
+     * Paints the given area of the current image, as shown at the given
+     * scale (relative to the image's size), with the top left corner of the
+     * area at the origin of the given GC. Called from the UI thread.
+     * 
+     * @return <code>true</code> if painted, or <code>false</code> if the
+     *         current image cannot be painted at other scales, in which case
+     *         the image gets scaled instead
+     */
+    public boolean paint(GC gc, double scale, Rectangle area);
+
+    /**
+     * Returns the size of the current image relative to the natural size of
+     * its contents. Images of large contents may be produced smaller than
+     * that (to bound their memory use), and then painted at higher scales as
+     * needed.
+     */
+    default double getImageScale() {
+        return 1;
+    }
+}
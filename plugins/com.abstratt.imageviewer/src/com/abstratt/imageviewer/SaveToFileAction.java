@@ -9,6 +9,7 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.dialogs.MessageDialog;
@@ -21,7 +22,9 @@ import org.eclipse.ui.IViewActionDelegate;
 import org.eclipse.ui.IViewPart;
 
 import com.abstratt.content.IContentProviderRegistry.IProviderDescription;
+import com.abstratt.pluginutils.Metrics;
 import com.abstratt.content.PlaceholderProviderDescription;
+import com.abstratt.imageviewer.AbstractGraphicalContentProvider.ContentLoadingRule;
 import com.abstratt.imageviewer.IGraphicalContentProvider.GraphicFileFormat;
 
 public class SaveToFileAction implements IViewActionDelegate {
@@ -93,15 +96,21 @@ public class SaveToFileAction implements IViewActionDelegate {
         @Override
         protected IStatus run(IProgressMonitor monitor) {
             monitor.beginTask("saving image", 100);
-            getJobManager().beginRule(AbstractGraphicalContentProvider.CONTENT_LOADING_RULE, monitor);
+            // saves to different locations may run concurrently
+            ISchedulingRule rule = new ContentLoadingRule(path);
+            getJobManager().beginRule(rule, monitor);
+            long start = System.nanoTime();
             try {
                 IGraphicalContentProvider provider = (IGraphicalContentProvider) providerDefinition.getProvider();
                 Object input = providerDefinition.read(view.getSelectedFile());
+                Metrics.timer("save.read").recordSince(start);
                 provider.saveImage(Display.getDefault(), new Point(0, 0), input, path, fileFormat);
             } catch (CoreException e) {
+                Metrics.counter("save.failures").increment();
                 return e.getStatus();
             } finally {
-                getJobManager().endRule(AbstractGraphicalContentProvider.CONTENT_LOADING_RULE);
+                Metrics.timer("save.total").recordSince(start);
+                getJobManager().endRule(rule);
                 monitor.done();
             }
             return Status.OK_STATUS;
@@ -0,0 +1,139 @@
+package com.abstratt.imageviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IToolBarManager;
+import org.eclipse.jface.viewers.ArrayContentProvider;
+import org.eclipse.jface.viewers.ITableLabelProvider;
+import org.eclipse.jface.viewers.LabelProvider;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.ui.part.ViewPart;
+
+import com.abstratt.pluginutils.Metrics;
+import com.abstratt.pluginutils.Metrics.TimerSnapshot;
+
+/**
+ * Shows the rendering counters and timers collected so far (see
+ * {@link Metrics}), updating them periodically.
+ */
+public class StatisticsView extends ViewPart {
+    public final static String VIEW_ID = "com.abstratt.imageviewer.StatisticsView";
+
+    private static final int REFRESH_INTERVAL = 2000;
+
+    private static final String[] COLUMNS = { "Metric", "Count", "Total (ms)", "Mean (ms)", "Max (ms)" };
+
+    private TableViewer viewer;
+
+    private final Runnable refresher = new Runnable() {
+        public void run() {
+            if (viewer == null || viewer.getControl().isDisposed())
+                return;
+            if (getSite().getPage().isPartVisible(StatisticsView.this))
+                refresh();
+            viewer.getControl().getDisplay().timerExec(REFRESH_INTERVAL, this);
+        }
+    };
+
+    /**
+     * A row in the table: a counter has only a count.
+     */
+    private static class Row {
+        final String name;
+        final long count;
+        final TimerSnapshot timer;
+
+        Row(String name, long count, TimerSnapshot timer) {
+            this.name = name;
+            this.count = count;
+            this.timer = timer;
+        }
+    }
+
+    private static class RowLabelProvider extends LabelProvider implements ITableLabelProvider {
+        public Image getColumnImage(Object element, int columnIndex) {
+            return null;
+        }
+
+        public String getColumnText(Object element, int columnIndex) {
+            Row row = (Row) element;
+            switch (columnIndex) {
+            case 0:
+                return row.name;
+            case 1:
+                return Long.toString(row.count);
+            case 2:
+                return row.timer == null ? "" : Long.toString(row.timer.getTotalMillis());
+            case 3:
+                return row.timer == null ? "" : String.format("%.1f", row.timer.getMeanMillis());
+            case 4:
+                return row.timer == null ? "" : Long.toString(row.timer.getMaxMillis());
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void createPartControl(Composite parent) {
+        viewer = new TableViewer(parent, SWT.FULL_SELECTION | SWT.H_SCROLL | SWT.V_SCROLL);
+        Table table = viewer.getTable();
+        table.setHeaderVisible(true);
+        table.setLinesVisible(true);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            TableColumn column = new TableColumn(table, i == 0 ? SWT.LEFT : SWT.RIGHT);
+            column.setText(COLUMNS[i]);
+            column.setWidth(i == 0 ? 200 : 80);
+        }
+        viewer.setContentProvider(ArrayContentProvider.getInstance());
+        viewer.setLabelProvider(new RowLabelProvider());
+        contributeActions();
+        refresh();
+        parent.getDisplay().timerExec(REFRESH_INTERVAL, refresher);
+    }
+
+    private void contributeActions() {
+        IToolBarManager toolBar = getViewSite().getActionBars().getToolBarManager();
+        toolBar.add(new Action("Refresh") {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+        toolBar.add(new Action("Reset") {
+            @Override
+            public void run() {
+                Metrics.reset();
+                refresh();
+            }
+        });
+    }
+
+    private void refresh() {
+        List<Row> rows = new ArrayList<Row>();
+        for (Map.Entry<String, Long> counter : Metrics.getCounters().entrySet())
+            rows.add(new Row(counter.getKey(), counter.getValue(), null));
+        for (Map.Entry<String, TimerSnapshot> timer : Metrics.getTimers().entrySet())
+            rows.add(new Row(timer.getKey(), timer.getValue().getCount(), timer.getValue()));
+        viewer.setInput(rows);
+    }
+
+    @Override
+    public void dispose() {
+        if (viewer != null && !viewer.getControl().isDisposed())
+            viewer.getControl().getDisplay().timerExec(-1, refresher);
+        super.dispose();
+    }
+
+    @Override
+    public void setFocus() {
+        viewer.getControl().setFocus();
+    }
+}
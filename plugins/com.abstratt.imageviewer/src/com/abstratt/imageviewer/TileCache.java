@@ -0,0 +1,102 @@
+package com.abstratt.imageviewer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.swt.graphics.Image;
+
+import com.abstratt.pluginutils.Metrics;
+
+/**
+ * A bounded cache of image tiles, keyed by zoom level and position. When full,
+ * the least recently used tiles are disposed of. Meant to be used from the UI
+ * thread only.
+ */
+public class TileCache {
+    /**
+     * Identifies a tile: the zoom level it was produced for, plus its column
+     * and row in the grid of tiles for that level.
+     */
+    private static class Key {
+        final int level;
+        final int column;
+        final int row;
+
+        Key(int level, int column, int row) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return level == other.level && column == other.column && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (level * 31 + column) * 31 + row;
+        }
+    }
+
+    private int capacity;
+
+    private final LinkedHashMap<Key, Image> tiles = new LinkedHashMap<Key, Image>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Image> eldest) {
+            if (size() <= capacity)
+                return false;
+            eldest.getValue().dispose();
+            Metrics.counter("viewer.tileEvictions").increment();
+            return true;
+        }
+    };
+
+    public TileCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the tile at the given position, or <code>null</code> if it is
+     * not in the cache.
+     */
+    public Image get(int level, int column, int row) {
+        Image tile = tiles.get(new Key(level, column, row));
+        Metrics.counter(tile == null ? "viewer.tileMisses" : "viewer.tileHits").increment();
+        return tile;
+    }
+
+    public void put(int level, int column, int row, Image tile) {
+        Image replaced = tiles.put(new Key(level, column, row), tile);
+        if (replaced != null && replaced != tile)
+            replaced.dispose();
+    }
+
+    /**
+     * Makes room for at least the given number of tiles. The capacity never
+     * shrinks, so a whole viewport worth of tiles always fits.
+     */
+    public void ensureCapacity(int minimum) {
+        capacity = Math.max(capacity, minimum);
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Disposes of all tiles.
+     */
+    public void clear() {
+        for (Iterator<Image> i = tiles.values().iterator(); i.hasNext();) {
+            i.next().dispose();
+            i.remove();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.abstratt.pluginutils;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A process-wide registry of named counters and timers, cheap enough to be
+ * updated on hot paths. Can be published as an MBean (see
+ * {@link #register(String)}) so it can be inspected with any JMX console.
+ */
+public class Metrics {
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        void reset() {
+            value.set(0);
+        }
+    }
+
+    /**
+     * Accumulates how long something took, over many occurrences.
+     */
+    public static class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Records one occurrence that started at the given time (as obtained
+         * from {@link System#nanoTime()}) and just ended.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos))
+                ;
+        }
+
+        public TimerSnapshot snapshot() {
+            return new TimerSnapshot(count.get(), totalNanos.get() / 1000000, maxNanos.get() / 1000000);
+        }
+
+        void reset() {
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+    }
+
+    /**
+     * The state of a timer at some point.
+     */
+    public static class TimerSnapshot {
+        private final long count;
+        private final long totalMillis;
+        private final long maxMillis;
+
+        @ConstructorProperties({ "count", "totalMillis", "maxMillis" })
+        public TimerSnapshot(long count, long totalMillis, long maxMillis) {
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : (double) totalMillis / count;
+        }
+    }
+
+    /**
+     * The management interface for metrics.
+     */
+    public interface MetricsMXBean {
+        SortedMap<String, Long> getCounters();
+
+        SortedMap<String, TimerSnapshot> getTimers();
+
+        void reset();
+    }
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+    private static final MetricsMXBean MBEAN = new MetricsMXBean() {
+        public SortedMap<String, Long> getCounters() {
+            return Metrics.getCounters();
+        }
+
+        public SortedMap<String, TimerSnapshot> getTimers() {
+            return Metrics.getTimers();
+        }
+
+        public void reset() {
+            Metrics.reset();
+        }
+    };
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter existing = counters.putIfAbsent(name, counter = new Counter());
+            if (existing != null)
+                counter = existing;
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the timer with the given name, creating it if needed.
+     */
+    public static Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer existing = timers.putIfAbsent(name, timer = new Timer());
+            if (existing != null)
+                timer = existing;
+        }
+        return timer;
+    }
+
+    /**
+     * Returns the current value of all counters, sorted by name.
+     */
+    public static SortedMap<String, Long> getCounters() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().get());
+        return values;
+    }
+
+    /**
+     * Returns the current state of all timers, sorted by name.
+     */
+    public static SortedMap<String, TimerSnapshot> getTimers() {
+        SortedMap<String, TimerSnapshot> values = new TreeMap<String, TimerSnapshot>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet())
+            values.put(entry.getKey(), entry.getValue().snapshot());
+        return values;
+    }
+
+    /**
+     * Zeroes all counters and timers.
+     */
+    public static void reset() {
+        for (Counter counter : counters.values())
+            counter.reset();
+        for (Timer timer : timers.values())
+            timer.reset();
+    }
+
+    /**
+     * Publishes all metrics as an MBean with the given object name. Does
+     * nothing if already published under that name.
+     */
+    public static void register(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name))
+                server.registerMBean(MBEAN, name);
+        } catch (JMException e) {
+            LogUtils.logWarning(Metrics.class, "Could not publish metrics as " + objectName, e);
+        }
+    }
+
+    public static void unregister(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException e) {
+            LogUtils.logWarning(Metrics.class, "Could not unpublish metrics from " + objectName, e);
+        }
+    }
+}